@@ -9,8 +9,10 @@ package org.rsna.isn.ctp.xds.receiver;
 
 import java.io.File;
 import org.apache.log4j.Logger;
+import org.rsna.isn.ctp.xds.sender.JdbmCompactor;
 import org.rsna.util.JdbmUtil;
 import jdbm.RecordManager;
+import jdbm.helper.FastIterator;
 import jdbm.htree.HTree;
 
 /**
@@ -24,6 +26,8 @@ public class DocSetDB {
 	RecordManager recman = null;
 	HTree index = null;
 	boolean acceptAlways = false;
+	File db = null;
+	long lastReclaimedBytes = 0;
 
 	/**
 	 * Construct a DocSetDB.
@@ -33,14 +37,15 @@ public class DocSetDB {
 		this.dir = dir;
 		this.acceptAlways = acceptAlways;
 		dir.mkdirs();
-		File db = new File(dir, "docsetIDs");
+		db = new File(dir, "docsetIDs");
+		JdbmCompactor.recover(db);
 		getIndex(db.getPath());
 	}
 
 	/**
 	 * Add a document set ID to the database.
 	 */
-	public void addID(String id) {
+	public synchronized void addID(String id) {
 		try {
 			Long time = new Long( System.currentTimeMillis() );
 			index.put( id, time );
@@ -52,16 +57,70 @@ public class DocSetDB {
 	/**
 	 * See if an document set ID is in the database.
 	 */
-	public boolean contains(String id) {
+	public synchronized boolean contains(String id) {
 		if (acceptAlways) return false;
 		try { return (index.get(id) != null); }
 		catch (Exception notThere) { return false; }
 	}
 
+	/**
+	 * Compact the database, copying the IDs into a fresh database and
+	 * replacing the old files with it. The database is locked during the
+	 * compaction, which is short because the records are small.
+	 * @return the number of bytes reclaimed, or -1 if the database
+	 * could not be compacted.
+	 */
+	public synchronized long compact() {
+		if (recman == null) return -1;
+		long before = JdbmCompactor.getSize(db);
+		RecordManager copy = null;
+		try {
+			copy = JdbmCompactor.createCompactRecordManager(db);
+			HTree copyIndex = JdbmCompactor.createHTree(copy, "index");
+			FastIterator it = index.keys();
+			Object key;
+			int count = 0;
+			while ( (key = it.next()) != null ) {
+				copyIndex.put(key, index.get(key));
+				if ((++count % 1000) == 0) copy.commit();
+			}
+			copy.commit();
+			copy.close();
+			copy = null;
+			recman.commit();
+			recman.close();
+			recman = null;
+			JdbmCompactor.swap(db);
+			getIndex(db.getPath());
+			lastReclaimedBytes = before - JdbmCompactor.getSize(db);
+			logger.info("Compacted the document set database: "+count+" IDs, "+lastReclaimedBytes+" bytes reclaimed");
+			return lastReclaimedBytes;
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to compact the document set database", ex);
+			if (copy != null) {
+				try { copy.close(); }
+				catch (Exception ignore) { }
+			}
+			if (recman == null) {
+				JdbmCompactor.recover(db);
+				getIndex(db.getPath());
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * Get the number of bytes reclaimed by the last compaction.
+	 */
+	public long getLastReclaimedBytes() {
+		return lastReclaimedBytes;
+	}
+
 	/**
 	 * Commit and close the database.
 	 */
-	public void close() {
+	public synchronized void close() {
 		if (recman != null) {
 			try {
 				recman.commit();
@@ -41,6 +41,8 @@ public class PollingXDSImportService extends AbstractPipelineStage implements Im
 
 	String[] siteIDs;
 	DocSetDB docsetDB;
+	long compactInterval = 0;
+	long lastCompactionTime = 0;
 
 	Poller poller = null;
 
@@ -80,6 +82,10 @@ public class PollingXDSImportService extends AbstractPipelineStage implements Im
 		File dbdir = new File(root, "database");
 		docsetDB = new DocSetDB(dbdir, false);
 
+		//Get the time (in hours) between compactions of the database (0 means never)
+		compactInterval = StringUtil.getLong(element.getAttribute("compactInterval")) * 60 * 60 * 1000;
+		lastCompactionTime = System.currentTimeMillis();
+
 		//Get the site IDs on which to poll
 		siteIDs = element.getAttribute("siteID").trim().split("\\s+");
 	}
@@ -184,7 +190,12 @@ public class PollingXDSImportService extends AbstractPipelineStage implements Im
 			"<tr><td width=\"20%\">Queue size:</td>"
 			+ "<td>" + ((queueManager!=null) ? queueManager.size() : "???") + "</td></tr>"
 			+ "<tr><td width=\"20%\">Last poll time:</td>"
-			+ "<td>" + StringUtil.getTime(lastPollTime,":") + "</td></tr>";
+			+ "<td>" + StringUtil.getTime(lastPollTime,":") + "</td></tr>"
+			+ ((compactInterval > 0)
+				? "<tr><td width=\"20%\">Database compaction:</td>"
+					+ "<td>" + String.format("%.1f MB reclaimed", ((double)docsetDB.getLastReclaimedBytes()) / (1024 * 1024))
+					+ "</td></tr>"
+				: "");
 		return super.getStatusHTML(stageUniqueStatus);
 	}
 
@@ -207,6 +218,12 @@ public class PollingXDSImportService extends AbstractPipelineStage implements Im
 				for (String siteID : siteIDs) poll(siteID);
 				logger.debug("-----------------Clearinghouse polling complete: "+t.getElapsedTime());
 
+				//Compact the database between polls, when it is not in use.
+				if ((compactInterval > 0) && ((System.currentTimeMillis() - lastCompactionTime) >= compactInterval)) {
+					docsetDB.compact();
+					lastCompactionTime = System.currentTimeMillis();
+				}
+
 				try { Thread.sleep(interval); }
 				catch (Exception ignore) { }
 			}
@@ -0,0 +1,342 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.isn.ctp.xds.sender;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+
+/**
+ * The base class of the StudyIndex storage engines.
+ * <p>
+ * All the studies are held in an in-memory table, with a secondary index
+ * for each status, so that queries and counts are answered without reading
+ * the persistent store. The table and indexes are concurrent structures,
+ * and updates to the indexes are serialized per study with striped locks,
+ * so updates to different studies do not contend. Only the writes to the
+ * persistent store are serialized, on a lock of their own.
+ * <p>
+ * By default, every update is committed immediately. If a commit interval
+ * is specified, the index runs in group-commit mode: updates that do not
+ * change the status of a study (for example, progress counters) are held
+ * in the table and written in a single commit when the interval expires or
+ * when the number of dirty studies reaches the commit count. Updates that
+ * change the status of a study, and removals, are always committed
+ * immediately, along with any pending updates.
+ * <p>
+ * Subclasses load their studies with the load method, call startCommitter
+ * at the end of their constructors, and implement the persistence methods,
+ * which are always called while holding the persistence lock.
+ */
+public abstract class AbstractStudyIndex implements StudyIndex {
+
+	static final Logger logger = Logger.getLogger(AbstractStudyIndex.class);
+
+	//The lock for all operations on the persistent store
+	protected final Object persistLock = new Object();
+
+	//The locks that serialize the index updates for each study
+	private final Object[] locks = new Object[32];
+
+	//The in-memory table, indexed by StudyInstanceUID
+	private final ConcurrentHashMap<String,XDSStudy> table = new ConcurrentHashMap<String,XDSStudy>();
+
+	//The secondary indexes and their counters, indexed by the name of the
+	//XDSStudyStatus. XDSStudyStatus is a typesafe enum class rather than
+	//a Java enum, so the indexes are keyed by the status name.
+	private final ConcurrentHashMap<String,Set<XDSStudy>> statusIndex = new ConcurrentHashMap<String,Set<XDSStudy>>();
+	private final ConcurrentHashMap<String,AtomicInteger> statusCount = new ConcurrentHashMap<String,AtomicInteger>();
+
+	//The status under which each study is currently indexed
+	private final ConcurrentHashMap<String,String> indexedStatus = new ConcurrentHashMap<String,String>();
+
+	//Order the studies on PatientID, breaking ties with the StudyInstanceUID
+	//so that different studies for the same patient are not collapsed.
+	private static final Comparator<XDSStudy> studyComparator = new Comparator<XDSStudy>() {
+		public int compare(XDSStudy s1, XDSStudy s2) {
+			int c = compareStrings(s1.getPatientID(), s2.getPatientID());
+			return (c != 0) ? c : compareStrings(s1.getStudyUID(), s2.getStudyUID());
+		}
+	};
+
+	//The StudyInstanceUIDs of the studies with uncommitted updates
+	private final Set<String> dirty = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+	private final long commitInterval;
+	private final int commitCount;
+	private CommitThread committer = null;
+	private volatile Runnable barrier = null;
+
+	/**
+	 * Construct an AbstractStudyIndex.
+	 * @param commitInterval the maximum time in milliseconds that an update
+	 * which does not change the status of a study is held before being committed.
+	 * If this parameter is zero or negative, every update is committed immediately.
+	 * @param commitCount the maximum number of dirty studies held before a commit.
+	 */
+	protected AbstractStudyIndex(long commitInterval, int commitCount) {
+		this.commitInterval = commitInterval;
+		this.commitCount = Math.max(commitCount, 1);
+		for (int i=0; i<locks.length; i++) locks[i] = new Object();
+	}
+
+	/**
+	 * Write a study to the persistent store.
+	 */
+	protected abstract void write(String studyUID, XDSStudy study) throws Exception;
+
+	/**
+	 * Delete a study from the persistent store.
+	 */
+	protected abstract void delete(String studyUID) throws Exception;
+
+	/**
+	 * Make the writes and deletions persistent.
+	 */
+	protected abstract void sync() throws Exception;
+
+	/**
+	 * Close the persistent store.
+	 */
+	protected abstract void closeStore() throws Exception;
+
+	/**
+	 * Indicate whether the persistent store is open.
+	 */
+	protected abstract boolean isOpen();
+
+	/**
+	 * Enter a study that has been read from the persistent
+	 * store into the in-memory table.
+	 */
+	protected void load(XDSStudy study) {
+		synchronized (getLock(study.getStudyUID())) {
+			index(study);
+		}
+	}
+
+	/**
+	 * Start the group-commit thread if a commit interval was specified.
+	 * Subclasses call this method at the end of their constructors.
+	 */
+	protected void startCommitter() {
+		if ((commitInterval > 0) && isOpen()) {
+			committer = new CommitThread();
+			committer.start();
+		}
+	}
+
+	public XDSStudy get(String studyUID) {
+		return table.get(studyUID);
+	}
+
+	public void put(XDSStudy study) {
+		String studyUID = study.getStudyUID();
+		boolean transition;
+		synchronized (getLock(studyUID)) {
+			String oldStatus = indexedStatus.get(studyUID);
+			transition = (oldStatus == null) || !oldStatus.equals(study.getStatus().toString());
+			index(study);
+			dirty.add(studyUID);
+		}
+		if ((committer == null) || transition || (dirty.size() >= commitCount)) {
+			commit();
+		}
+	}
+
+	public void remove(XDSStudy study) {
+		String studyUID = study.getStudyUID();
+		synchronized (getLock(studyUID)) {
+			dirty.remove(studyUID);
+			unindex(studyUID);
+		}
+		synchronized (persistLock) {
+			if (!isOpen()) return;
+			try {
+				delete(studyUID);
+			}
+			catch (Exception ex) {
+				logger.warn("Unable to remove the study", ex);
+			}
+			commit();
+		}
+	}
+
+	public void setCommitBarrier(Runnable barrier) {
+		this.barrier = barrier;
+	}
+
+	/**
+	 * Write all the pending updates to the persistent store and commit them.
+	 * The commit barrier, if any, is run first.
+	 */
+	public void commit() {
+		synchronized (persistLock) {
+			if (!isOpen()) return;
+			try {
+				Runnable barrier = this.barrier;
+				if (barrier != null) barrier.run();
+				Iterator<String> it = dirty.iterator();
+				while (it.hasNext()) {
+					String studyUID = it.next();
+					it.remove();
+					XDSStudy study = table.get(studyUID);
+					if (study != null) write(studyUID, study);
+				}
+				sync();
+			}
+			catch (Exception ex) {
+				logger.warn("Unable to update the study index", ex);
+			}
+		}
+	}
+
+	public XDSStudy[] getAllStudies() {
+		XDSStudy[] array = new XDSStudy[0];
+		return table.values().toArray(array);
+	}
+
+	public XDSStudy[] getActiveStudies() {
+		return list(new XDSStudyStatus[] {
+							XDSStudyStatus.OPEN,
+							XDSStudyStatus.COMPLETE });
+	}
+
+	public XDSStudy[] getSentStudies() {
+		return list(new XDSStudyStatus[] {
+							XDSStudyStatus.QUEUED,
+							XDSStudyStatus.INTRANSIT,
+							XDSStudyStatus.SUCCESS,
+							XDSStudyStatus.FAILED });
+	}
+
+	public XDSStudy[] getStudies(XDSStudyStatus studyStatus) {
+		return list(new XDSStudyStatus[] { studyStatus });
+	}
+
+	public int getCompleteStudyCount() {
+		return count(XDSStudyStatus.COMPLETE);
+	}
+
+	public int getInTransitStudyCount() {
+		return count(XDSStudyStatus.INTRANSIT);
+	}
+
+	public int getStudyCount() {
+		return table.size();
+	}
+
+	public void close() {
+		if (committer != null) {
+			committer.interrupt();
+			committer = null;
+		}
+		synchronized (persistLock) {
+			if (isOpen()) {
+				commit();
+				try { closeStore(); }
+				catch (Exception ignore) { }
+			}
+		}
+	}
+
+	public boolean isClosed() {
+		return !isOpen();
+	}
+
+	//The thread that commits the pending updates in group-commit mode
+	class CommitThread extends Thread {
+		public CommitThread() {
+			super("StudyIndex-committer");
+			setDaemon(true);
+		}
+		public void run() {
+			while (!isInterrupted()) {
+				try { Thread.sleep(commitInterval); }
+				catch (InterruptedException ex) { return; }
+				if (!dirty.isEmpty()) commit();
+			}
+		}
+	}
+
+	//Get the lock that serializes the index updates for a study.
+	private Object getLock(String studyUID) {
+		return locks[ (studyUID.hashCode() & 0x7fffffff) % locks.length ];
+	}
+
+	//Merge the secondary indexes for a set of statuses into a sorted array.
+	private XDSStudy[] list(XDSStudyStatus[] statuses) {
+		TreeSet<XDSStudy> set = new TreeSet<XDSStudy>(studyComparator);
+		for (XDSStudyStatus status : statuses) {
+			Set<XDSStudy> index = statusIndex.get(status.toString());
+			if (index != null) set.addAll(index);
+		}
+		XDSStudy[] array = new XDSStudy[set.size()];
+		return set.toArray(array);
+	}
+
+	//Get the number of studies with a specified status.
+	private int count(XDSStudyStatus status) {
+		AtomicInteger counter = statusCount.get(status.toString());
+		return (counter != null) ? counter.get() : 0;
+	}
+
+	//Get the index and the counter for a status, creating them if necessary.
+	private Set<XDSStudy> getIndex(String status) {
+		Set<XDSStudy> index = statusIndex.get(status);
+		if (index == null) {
+			statusCount.putIfAbsent(status, new AtomicInteger());
+			statusIndex.putIfAbsent(status, new ConcurrentSkipListSet<XDSStudy>(studyComparator));
+			index = statusIndex.get(status);
+		}
+		return index;
+	}
+
+	//Enter a study in the table and move it to the index for its current status.
+	//This method must be called while holding the lock for the study.
+	private void index(XDSStudy study) {
+		String studyUID = study.getStudyUID();
+		String status = study.getStatus().toString();
+		XDSStudy old = table.put(studyUID, study);
+		String oldStatus = indexedStatus.put(studyUID, status);
+		if (oldStatus != null) {
+			//Remove the entry under its old status. Note that the table may
+			//have held a different instance for the same study.
+			if (getIndex(oldStatus).remove((old != null) ? old : study)) {
+				statusCount.get(oldStatus).decrementAndGet();
+			}
+		}
+		if (getIndex(status).add(study)) {
+			statusCount.get(status).incrementAndGet();
+		}
+	}
+
+	//Remove a study from the table and the secondary indexes.
+	//This method must be called while holding the lock for the study.
+	private void unindex(String studyUID) {
+		XDSStudy old = table.remove(studyUID);
+		String oldStatus = indexedStatus.remove(studyUID);
+		if ((old != null) && (oldStatus != null)) {
+			if (getIndex(oldStatus).remove(old)) {
+				statusCount.get(oldStatus).decrementAndGet();
+			}
+		}
+	}
+
+	private static int compareStrings(String s1, String s2) {
+		if (s1 == null) s1 = "";
+		if (s2 == null) s2 = "";
+		return s1.compareTo(s2);
+	}
+
+}
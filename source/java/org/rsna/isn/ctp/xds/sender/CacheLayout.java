@@ -0,0 +1,99 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.isn.ctp.xds.sender;
+
+import java.io.File;
+
+/**
+ * The layout of the study directories under the root of an XDSStudyCache.
+ * <p>
+ * The layouts are:
+ * <ul>
+ * <li>flat: cacheRoot/dirname (the default)
+ * <li>hashed: cacheRoot/ab/cd/dirname, where ab and cd are taken from
+ * the hash code of the dirname, spreading the studies over 65536
+ * directories of two levels
+ * </ul>
+ * The dirname of a study is its sanitized StudyInstanceUID. A study whose
+ * directory is still in the location of the other layout (because it was
+ * cached before the layout was changed) is found there until it is migrated.
+ */
+public class CacheLayout {
+
+	public static final String FLAT = "flat";
+	public static final String HASHED = "hashed";
+
+	private final File root;
+	private final String type;
+
+	/**
+	 * Construct a CacheLayout.
+	 * @param root the root directory of the cache.
+	 * @param type the layout (flat or hashed). If the layout is
+	 * not recognized, flat is used.
+	 */
+	public CacheLayout(File root, String type) {
+		type = (type != null) ? type.trim().toLowerCase() : "";
+		this.root = root;
+		this.type = type.equals(HASHED) ? HASHED : FLAT;
+	}
+
+	/**
+	 * Get the layout type.
+	 */
+	public String getType() {
+		return type;
+	}
+
+	/**
+	 * Get the root directory of the cache.
+	 */
+	public File getRoot() {
+		return root;
+	}
+
+	/**
+	 * Get the dirname of a study.
+	 * @param studyUID the StudyInstanceUID of the study.
+	 * @return the sanitized StudyInstanceUID.
+	 */
+	public static String getDirname(String studyUID) {
+		return studyUID.replaceAll("[\\\\/\\s]", "_").trim();
+	}
+
+	/**
+	 * Get the directory of a study in this layout.
+	 * @param dirname the dirname of the study.
+	 */
+	public File getStudyDir(String dirname) {
+		return getStudyDir(dirname, type);
+	}
+
+	/**
+	 * Find the directory of a study, looking first in the location
+	 * for this layout and then in the location for the other layout.
+	 * @param dirname the dirname of the study.
+	 * @return the directory in which the study's objects are stored, or
+	 * the directory for this layout if the study has no directory.
+	 */
+	public File locate(String dirname) {
+		File dir = getStudyDir(dirname);
+		if (dir.exists()) return dir;
+		File other = getStudyDir(dirname, type.equals(HASHED) ? FLAT : HASHED);
+		return other.exists() ? other : dir;
+	}
+
+	private File getStudyDir(String dirname, String type) {
+		if (type.equals(FLAT)) return new File(root, dirname);
+		int h = dirname.hashCode();
+		String ab = String.format("%02x", (h >>> 8) & 0xff);
+		String cd = String.format("%02x", h & 0xff);
+		return new File(new File(new File(root, ab), cd), dirname);
+	}
+
+}
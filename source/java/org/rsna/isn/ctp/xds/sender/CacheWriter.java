@@ -0,0 +1,499 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.isn.ctp.xds.sender;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * A class to write objects into the study cache, using the ingest mode
+ * specified in the configuration of the CachingXDSExportService.
+ * <p>
+ * The modes are:
+ * <ul>
+ * <li>copy: copy the file as a stream (the default)
+ * <li>link: create a hard link to the file if it is on the same filesystem,
+ * otherwise copy it with FileChannel.transferTo, otherwise copy it as a stream
+ * <li>transfer: copy the file with FileChannel.transferTo, otherwise copy it
+ * as a stream
+ * </ul>
+ * In all modes, the object is created under a temporary name in the study
+ * directory and then atomically moved into place, so a reader never sees a
+ * partial object and a replacement never leaves a missing one.
+ * <p>
+ * In the copy mode, the SHA-1 digest of the object is computed from the data
+ * as it is copied, so that the ITI-41 transaction does not have to read the
+ * file to obtain it. The link and transfer modes do not pass the data through
+ * the JVM, and they do not read the file to compute the digest; it is computed
+ * where it is needed (by the duplicate check when an object is stored again,
+ * and by the ITI-41 transaction when the object is sent).
+ * <p>
+ * A hard link is safe with respect to the pipeline's later deletion of the
+ * source file because deleting the source only removes one of the names of
+ * the data. CTP stages replace files rather than rewriting them in place, so
+ * later stages do not change the data seen through the link.
+ * <p>
+ * The durability modes are:
+ * <ul>
+ * <li>none: the objects are left to the operating system's write-back
+ * (the default)
+ * <li>object: each object is forced to the disk before it is moved into
+ * place, and its directory is forced after the move
+ * <li>batch: the objects are forced to the disk in groups, when a number
+ * of objects have been stored, when an interval has passed, and before
+ * every commit of the study index
+ * </ul>
+ * In the object and batch modes, the index never commits a reference to
+ * an object that has not been forced to the disk: in the object mode
+ * because the object is forced before store updates the index, and in
+ * the batch mode because the index calls flush before each commit. The
+ * batch mode only batches if the index commits in groups, so the
+ * XDSStudyCache runs the index in group-commit mode when batch durability
+ * is selected.
+ */
+public class CacheWriter {
+
+	static final Logger logger = Logger.getLogger(CacheWriter.class);
+
+	public static final String COPY = "copy";
+	public static final String LINK = "link";
+	public static final String TRANSFER = "transfer";
+
+	private static final String[] methods = { COPY, LINK, TRANSFER, "stream" };
+
+	private final String mode;
+	private final long[] files = new long[methods.length];
+	private final long[] bytes = new long[methods.length];
+	private final long[] nanos = new long[methods.length];
+
+	public static final String NONE = "none";
+	public static final String OBJECT = "object";
+	public static final String BATCH = "batch";
+
+	private final String durability;
+	private final int batchCount;
+	private final long batchInterval;
+	private ArrayList<File> unsynced = new ArrayList<File>();
+	private final Object syncLock = new Object();
+	private final Object flushLock = new Object();
+	private SyncThread syncer = null;
+	private long syncs = 0;
+	private long syncedFiles = 0;
+	private long syncNanos = 0;
+
+	/**
+	 * Construct a CacheWriter that leaves the objects to the
+	 * operating system's write-back.
+	 * @param mode the ingest mode (copy, link, or transfer).
+	 * If the mode is not recognized, copy is used.
+	 */
+	public CacheWriter(String mode) {
+		this(mode, NONE, 0, 0);
+	}
+
+	/**
+	 * Construct a CacheWriter.
+	 * @param mode the ingest mode (copy, link, or transfer).
+	 * If the mode is not recognized, copy is used.
+	 * @param durability the durability mode (none, object, or batch).
+	 * If the mode is not recognized, none is used.
+	 * @param batchCount the number of objects stored in the batch mode
+	 * before they are forced to the disk (0 means no limit).
+	 * @param batchInterval the maximum time in milliseconds that an object
+	 * stored in the batch mode waits before it is forced to the disk
+	 * (0 means no limit).
+	 */
+	public CacheWriter(String mode, String durability, int batchCount, long batchInterval) {
+		mode = (mode != null) ? mode.trim().toLowerCase() : "";
+		if (!mode.equals(LINK) && !mode.equals(TRANSFER)) mode = COPY;
+		this.mode = mode;
+		durability = (durability != null) ? durability.trim().toLowerCase() : "";
+		if (!durability.equals(OBJECT) && !durability.equals(BATCH)) durability = NONE;
+		this.durability = durability;
+		this.batchCount = batchCount;
+		this.batchInterval = batchInterval;
+		if (durability.equals(BATCH) && (batchInterval > 0)) {
+			syncer = new SyncThread();
+			syncer.start();
+		}
+	}
+
+	/**
+	 * Get the ingest mode.
+	 */
+	public String getMode() {
+		return mode;
+	}
+
+	/**
+	 * Get the durability mode.
+	 */
+	public String getDurability() {
+		return durability;
+	}
+
+	/**
+	 * Write a file into the cache.
+	 * @param source the file to be stored.
+	 * @param dest the file in the cache.
+	 * @return the hex SHA-1 digest of the file if it was computed as the file
+	 * was stored, an empty string if the file was stored without passing its
+	 * data through the JVM, or null if the file could not be stored.
+	 */
+	public String write(File source, File dest) {
+		String digest = store(source, dest);
+		if ((digest != null) && durability.equals(BATCH)) {
+			boolean full;
+			synchronized (syncLock) {
+				unsynced.add(dest);
+				full = (batchCount > 0) && (unsynced.size() >= batchCount);
+			}
+			if (full) flush();
+		}
+		return digest;
+	}
+
+	/**
+	 * Force the objects stored in the batch mode to the disk. In the
+	 * other modes, this method does nothing. When this method returns,
+	 * every object stored before it was called has been forced, including
+	 * the objects of a flush by another thread that was still in progress.
+	 */
+	public void flush() {
+		//The flush lock is held while the objects are forced, so a flush
+		//that finds no pending objects still waits for the objects that
+		//another flush has taken from the list but not yet forced.
+		synchronized (flushLock) {
+			ArrayList<File> files;
+			synchronized (syncLock) {
+				if (unsynced.isEmpty()) return;
+				files = unsynced;
+				unsynced = new ArrayList<File>();
+			}
+			long start = System.nanoTime();
+			HashSet<File> dirs = new HashSet<File>();
+			for (File file : files) {
+				if (file.exists()) {
+					force(file);
+					dirs.add(file.getParentFile());
+				}
+			}
+			for (File dir : dirs) forceDirectory(dir);
+			recordSync(files.size(), start);
+		}
+	}
+
+	/**
+	 * Force the pending objects to the disk and stop the batch thread.
+	 */
+	public void close() {
+		if (syncer != null) {
+			syncer.interrupt();
+			syncer = null;
+		}
+		flush();
+	}
+
+	//The thread that forces the objects stored in the batch mode
+	//to the disk when the batch interval has passed.
+	class SyncThread extends Thread {
+		public SyncThread() {
+			super("CacheWriter-sync");
+			setDaemon(true);
+		}
+		public void run() {
+			while (!isInterrupted()) {
+				try { Thread.sleep(batchInterval); }
+				catch (InterruptedException ex) { return; }
+				flush();
+			}
+		}
+	}
+
+	//Store a file with the ingest mode, falling back as necessary.
+	private String store(File source, File dest) {
+		long length = source.length();
+		long start = System.nanoTime();
+		if (mode.equals(COPY)) {
+			String digest = stream(source, dest);
+			if (digest != null) record(0, length, start);
+			return digest;
+		}
+		if (mode.equals(LINK) && link(source, dest)) {
+			record(1, length, start);
+			return "";
+		}
+		start = System.nanoTime();
+		if (transfer(source, dest)) {
+			record(2, length, start);
+			return "";
+		}
+		start = System.nanoTime();
+		String digest = stream(source, dest);
+		if (digest != null) {
+			record(3, length, start);
+			return digest;
+		}
+		logger.warn("Unable to store "+source+" in the cache as "+dest);
+		return null;
+	}
+
+	/**
+	 * Get HTML table rows displaying the throughput of each
+	 * of the methods that has been used to store objects.
+	 */
+	public synchronized String getStatusHTML() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("<tr><td width=\"20%\">Ingest mode:</td><td>" + mode + "</td></tr>");
+		long ingestNanos = 0;
+		for (long n : nanos) ingestNanos += n;
+		if (!durability.equals(OBJECT)) ingestNanos += syncNanos;
+		String cost = "";
+		if (syncedFiles > 0) {
+			double ms = ((double)syncNanos) / 1000000.0;
+			cost = String.format(": %d syncs of %d objects, %.0f ms (%.2f ms per object, %.1f%% of ingest time)",
+							syncs, syncedFiles, ms, ms / syncedFiles,
+							(ingestNanos > 0) ? (100.0 * syncNanos / ingestNanos) : 0.0);
+		}
+		sb.append("<tr><td width=\"20%\">Durability:</td><td>" + durability + cost + "</td></tr>");
+		for (int i=0; i<methods.length; i++) {
+			if (files[i] > 0) {
+				double mb = ((double)bytes[i]) / (1024 * 1024);
+				double sec = ((double)nanos[i]) / 1000000000.0;
+				String rate = (sec > 0) ? String.format("%.1f MB/s", mb/sec) : "-";
+				sb.append("<tr><td width=\"20%\">Ingest ("+methods[i]+"):</td>"
+							+ "<td>" + files[i] + " files, "
+							+ String.format("%.1f MB, ", mb) + rate + "</td></tr>");
+			}
+		}
+		return sb.toString();
+	}
+
+	private synchronized void record(int method, long length, long start) {
+		files[method]++;
+		bytes[method] += length;
+		nanos[method] += System.nanoTime() - start;
+	}
+
+	private synchronized void recordSync(int count, long start) {
+		syncs++;
+		syncedFiles += count;
+		syncNanos += System.nanoTime() - start;
+	}
+
+	//Force the data of a file to the disk.
+	private void force(File file) {
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+			channel.force(true);
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to force "+file+" to the disk", ex);
+		}
+		finally {
+			close(channel);
+		}
+	}
+
+	private void close(FileChannel channel) {
+		if (channel != null) {
+			try { channel.close(); }
+			catch (Exception ignore) { }
+		}
+	}
+
+	//Force a directory entry to the disk. Some platforms do not
+	//allow a directory to be opened, so failures are ignored.
+	private void forceDirectory(File dir) {
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+			channel.force(true);
+		}
+		catch (Exception ignore) { }
+		finally {
+			close(channel);
+		}
+	}
+
+	//Create a hard link to the source, returning false if the
+	//filesystem does not support it or the files are on different
+	//filesystems.
+	private boolean link(File source, File dest) {
+		File temp = getTempFile(dest);
+		try {
+			Files.createLink(temp.toPath(), source.toPath());
+			moveIntoPlace(temp, dest);
+			return true;
+		}
+		catch (Exception ex) {
+			temp.delete();
+			logger.debug("Unable to link "+source+": "+ex.getMessage());
+			return false;
+		}
+	}
+
+	//Copy the source with FileChannel.transferTo.
+	private boolean transfer(File source, File dest) {
+		File temp = getTempFile(dest);
+		FileInputStream in = null;
+		FileOutputStream out = null;
+		try {
+			in = new FileInputStream(source);
+			out = new FileOutputStream(temp);
+			FileChannel inChannel = in.getChannel();
+			FileChannel outChannel = out.getChannel();
+			long size = inChannel.size();
+			long position = 0;
+			while (position < size) {
+				long n = inChannel.transferTo(position, size - position, outChannel);
+				if (n <= 0) throw new Exception("transferTo made no progress");
+				position += n;
+			}
+			out.close();
+			out = null;
+			moveIntoPlace(temp, dest);
+			return true;
+		}
+		catch (Exception ex) {
+			logger.debug("Unable to transfer "+source+": "+ex.getMessage());
+			return false;
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+			IOUtils.closeQuietly(out);
+			temp.delete();
+		}
+	}
+
+	//Copy the source as a stream, returning its digest.
+	private String stream(File source, File dest) {
+		File temp = getTempFile(dest);
+		FileInputStream in = null;
+		FileOutputStream out = null;
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			in = new FileInputStream(source);
+			out = new FileOutputStream(temp);
+			byte[] buffer = new byte[65536];
+			int n;
+			while ( (n = in.read(buffer)) != -1 ) {
+				md.update(buffer, 0, n);
+				out.write(buffer, 0, n);
+			}
+			out.close();
+			out = null;
+			moveIntoPlace(temp, dest);
+			return toHex(md.digest());
+		}
+		catch (Exception ex) {
+			logger.debug("Unable to copy "+source+": "+ex.getMessage());
+			return null;
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+			IOUtils.closeQuietly(out);
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Compute the hex SHA-1 digest of a file.
+	 * @param file the file.
+	 * @return the digest, or null if the file could not be read.
+	 */
+	public String digest(File file) {
+		FileInputStream in = null;
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			in = new FileInputStream(file);
+			byte[] buffer = new byte[65536];
+			int n;
+			while ( (n = in.read(buffer)) != -1 ) md.update(buffer, 0, n);
+			return toHex(md.digest());
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to compute the digest of "+file, ex);
+			return null;
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Write the contents of an object held in memory into the cache.
+	 * @param data the contents of the object.
+	 * @param dest the file in the cache.
+	 * @return true if the object was stored; false otherwise.
+	 */
+	public boolean write(byte[] data, File dest) {
+		File temp = getTempFile(dest);
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(temp);
+			out.write(data);
+			out.close();
+			out = null;
+			moveIntoPlace(temp, dest);
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to write "+dest, ex);
+			return false;
+		}
+		finally {
+			IOUtils.closeQuietly(out);
+			temp.delete();
+		}
+		if (durability.equals(BATCH)) {
+			synchronized (syncLock) { unsynced.add(dest); }
+		}
+		return true;
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuffer sb = new StringBuffer(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	//In the object mode, the data is forced to the disk before the move
+	//and the directory entry after it.
+	private void moveIntoPlace(File temp, File dest) throws Exception {
+		long start = System.nanoTime();
+		if (durability.equals(OBJECT)) force(temp);
+		Files.move(temp.toPath(), dest.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		if (durability.equals(OBJECT)) {
+			forceDirectory(dest.getParentFile());
+			recordSync(1, start);
+		}
+	}
+
+	//Temporary files start with a period, which never
+	//appears at the start of a sanitized SOPInstanceUID.
+	private File getTempFile(File dest) {
+		return new File(dest.getParentFile(), "." + dest.getName() + "." + Thread.currentThread().getId());
+	}
+
+}
@@ -9,6 +9,7 @@ package org.rsna.isn.ctp.xds.sender;
 
 import java.io.File;
 import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.Configuration;
 import org.rsna.ctp.objects.FileObject;
@@ -36,13 +37,16 @@ public class CachingXDSExportService extends AbstractPipelineStage implements Ex
 	XDSStudyCache studyCache = null;
 	String servletContext = "";
 	long minAge = 300;
-	int count = 0;
+	AtomicInteger count = new AtomicInteger();
 	String objectCacheID = "";
 	ObjectCache objectCache = null;
 	boolean deleteOnTransmission = true;
 	MonitorThread monitor = null;
 	boolean autosend = false;
 	String firstDestinationKey = null;
+	long drainTimeout = 120;
+	long compactInterval = 0;
+	long lastCompaction = 0;
 
 	/**
 	 * Construct a CachingXDSExportService.
@@ -59,6 +63,16 @@ public class CachingXDSExportService extends AbstractPipelineStage implements Ex
 		deleteOnTransmission = !element.getAttribute("deleteOnTransmission").equals("no");
 		autosend = element.getAttribute("autosend").equals("yes");
 
+		//The drainTimeout is the maximum time (in seconds) that shutdown
+		//waits for the transmissions in progress to finish.
+		String dt = element.getAttribute("drainTimeout").trim();
+		if (!dt.equals("")) drainTimeout = Math.max( StringUtil.getLong(dt), 0 );
+		drainTimeout *= 1000;
+
+		//The compactInterval is the time (in hours) between compactions
+		//of the study database (0 means that it is only compacted on demand).
+		compactInterval = StringUtil.getLong(element.getAttribute("compactInterval")) * 60 * 60 * 1000;
+
 		//The objectCacheID is the id of a stage that holds the original (PHI) version of an object.
 		objectCacheID = element.getAttribute("objectCacheID").trim();
 
@@ -81,7 +95,9 @@ public class CachingXDSExportService extends AbstractPipelineStage implements Ex
 		NodeList nl = element.getElementsByTagName("Destination");
 		for (int i=0; i<nl.getLength(); i++) {
 			Element dEl = (Element)nl.item(i);
-			Destination d = new Destination( dEl.getAttribute("key").trim(), dEl.getAttribute("name").trim() );
+			Destination d = new Destination( dEl.getAttribute("key").trim(),
+											 dEl.getAttribute("name").trim(),
+											 StringUtil.getInt(dEl.getAttribute("priority")) );
 			destinations.put( d );
 			if (firstDestinationKey == null) firstDestinationKey = d.getKey();
 		}
@@ -122,33 +138,58 @@ public class CachingXDSExportService extends AbstractPipelineStage implements Ex
 		//Install the ISN roles and ensure that the admin user has them.
 		ISNRoles.init();
 
+		//Restart the transmissions that were interrupted when the stage stopped
+		studyCache.recoverTransmissions();
+
+		//Start completing studies as soon as their quiet periods expire
+		studyCache.startCompletionThread(minAge, autosend ? firstDestinationKey : null);
+
+		//Stream the series of OPEN studies to the autosend destination, if enabled
+		studyCache.startStreaming(autosend ? firstDestinationKey : null);
+
 		//Create and start the monitor thread
 		monitor = new MonitorThread();
 		monitor.start();
 	}
 
 	/**
-	 * Stop the pipeline stage.
+	 * Stop the pipeline stage. No more transmissions are started, and
+	 * the study cache is closed when the transmissions in progress have
+	 * finished or the drainTimeout has expired.
 	 */
 	public void shutdown() {
 		stop = true;
-		studyCache.close();
+		if (monitor != null) monitor.interrupt();
+		studyCache.close(drainTimeout);
 	}
 
 	/**
-	 * Determine whether the pipeline stage has shut down.
+	 * Determine whether the pipeline stage has shut down. This
+	 * is not true until the study cache has drained and closed.
 	 */
 	public boolean isDown() {
 		return studyCache.isClosed();
 	}
 
 	/**
-	 * Add a FileObject to the studyCache.
+	 * Add a FileObject to the studyCache. The pipeline calls this method
+	 * for one object at a time, so the ObjectCache still holds the PHI
+	 * version of the object when it is read here, before anything else
+	 * is done. The studyCache serializes the storage of objects of the
+	 * same study.
 	 */
-	public synchronized void export(FileObject fileObject) {
-		count++;
+	public void export(FileObject fileObject) {
+		count.incrementAndGet();
 		FileObject phiObject = (objectCache != null) ? objectCache.getCachedObject() : null;
-		studyCache.store(fileObject, phiObject);
+		//Block the pipeline while the cache is over its disk budget.
+		studyCache.waitForSpace();
+		String reason = studyCache.store(fileObject, phiObject);
+		if (reason != null) {
+			//Quarantine an object that cannot be sent now, rather than
+			//failing its study when the study is transmitted.
+			logger.warn(name+": rejected "+fileObject.getFile().getName()+": "+reason);
+			if (quarantine != null) quarantine.insert(fileObject);
+		}
 	}
 
 	/**
@@ -165,11 +206,26 @@ public class CachingXDSExportService extends AbstractPipelineStage implements Ex
 	 */
 	public String getStatusHTML() {
 		String stageUniqueStatus =
-			"<tr><td width=\"20%\">Files received:</td><td>" + count + "</td></tr>"
+			"<tr><td width=\"20%\">Files received:</td><td>" + count.get() + "</td></tr>"
 			+ "<tr><td width=\"20%\">Studies cached:</td>"
 			+ "<td>" + studyCache.getStudyCount() + "</td></tr>"
 			+ "<tr><td width=\"20%\">Studies complete:</td>"
-			+ "<td>" + studyCache.getCompleteStudyCount() + "</td></tr>";
+			+ "<td>" + studyCache.getCompleteStudyCount() + "</td></tr>"
+			+ "<tr><td width=\"20%\">Studies queued:</td>"
+			+ "<td>" + studyCache.getQueuedStudyCount() + "</td></tr>"
+			+ "<tr><td width=\"20%\">Studies in transit:</td>"
+			+ "<td>" + studyCache.getTransmittingStudyCount()
+			+ (studyCache.isDraining() ? " (draining)" : "") + "</td></tr>"
+			+ studyCache.getCompletionHTML()
+			+ studyCache.getStreamingHTML()
+			+ studyCache.getOccupancyHTML()
+			+ studyCache.getDedupHTML()
+			+ studyCache.getRejectionHTML()
+			+ studyCache.getMemoryTierHTML()
+			+ studyCache.getReaper().getStatusHTML()
+			+ studyCache.getReconcilerHTML()
+			+ studyCache.getCompactionHTML()
+			+ studyCache.getCacheWriter().getStatusHTML();
 		return super.getStatusHTML(stageUniqueStatus);
 	}
 
@@ -178,8 +234,11 @@ public class CachingXDSExportService extends AbstractPipelineStage implements Ex
 			super(servletContext + "-monitor");
 		}
 		public void run() {
+			//Note: OPEN studies are completed by the study cache's completion thread.
+			//This thread deletes transmitted studies and, if autosend is enabled,
+			//sends any COMPLETE studies that were not sent when they were completed
+			//(for example, studies that were COMPLETE when the stage was started).
 			while (!stop) {
-				studyCache.checkOpenStudies(System.currentTimeMillis() - minAge);
 				if (deleteOnTransmission) {
 					//Keep transmitted studies for 1 hour, just so the user can see that they went
 					studyCache.deleteTransmittedStudies(System.currentTimeMillis() - 60 * 60 * 1000);
@@ -187,6 +246,14 @@ public class CachingXDSExportService extends AbstractPipelineStage implements Ex
 				if (autosend && (firstDestinationKey != null)) {
 					studyCache.sendCompleteStudies(firstDestinationKey);
 				}
+				if (compactInterval > 0) {
+					long now = System.currentTimeMillis();
+					if (lastCompaction == 0) lastCompaction = now;
+					else if ((now - lastCompaction) >= compactInterval) {
+						studyCache.compactIndex();
+						lastCompaction = now;
+					}
+				}
 				try { Thread.sleep(minAge); }
 				catch (Exception ignore) { }
 			}
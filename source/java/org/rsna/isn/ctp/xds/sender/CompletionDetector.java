@@ -0,0 +1,46 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.isn.ctp.xds.sender;
+
+import org.rsna.ctp.objects.FileObject;
+
+/**
+ * The interface of the classes that detect that a study in an XDSStudyCache
+ * is complete before its quiet period (minAge) has expired. When a detector
+ * reports that a study is complete, the study is completed as soon as the
+ * shorter safety period has passed since its last object.
+ * <p>
+ * The detectors are specified by the completionDetectors attribute of the
+ * CachingXDSExportService, either by name (instanceCount) or by class name.
+ * A detector specified by class name must have a public no-argument constructor.
+ * Both methods are called while holding the cache's lock for the study.
+ */
+public interface CompletionDetector {
+
+	/**
+	 * Get the name of the detector, for reporting.
+	 */
+	public String getName();
+
+	/**
+	 * Examine an object that has been stored in a study.
+	 * @param study the study, updated with the object.
+	 * @param fileObject the object.
+	 * @param added true if the object is new to the study; false if
+	 * it replaced an object that was already stored.
+	 * @return true if the study is complete; false otherwise.
+	 */
+	public boolean objectStored(XDSStudy study, FileObject fileObject, boolean added);
+
+	/**
+	 * Release any state held for a study that has been completed or removed.
+	 * @param studyUID the StudyInstanceUID of the study.
+	 */
+	public void forget(String studyUID);
+
+}
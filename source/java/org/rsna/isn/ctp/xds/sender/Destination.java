@@ -25,6 +25,7 @@ public class Destination implements Serializable, Comparable<Destination> {
 
 	String key;
 	String name;
+	int priority = 0;
 
 	/**
 	 * Construct a Destination.
@@ -36,6 +37,18 @@ public class Destination implements Serializable, Comparable<Destination> {
 		this.name = name;
 	}
 
+	/**
+	 * Construct a Destination with a transmission priority.
+	 * @param key the clearinghouse key for submission sets for this destination.
+	 * @param name the meaningful name of the destination (e.g. Mayo XYZ Trial).
+	 * @param priority the priority of transmissions to this destination when
+	 * the stage's sendOrder is "priority" (larger values are sent first).
+	 */
+	public Destination(String key, String name, int priority) {
+		this(key, name);
+		this.priority = priority;
+	}
+
 	/**
 	 * Get the key
 	 */
@@ -50,6 +63,13 @@ public class Destination implements Serializable, Comparable<Destination> {
 		return name;
 	}
 
+	/**
+	 * Get the priority
+	 */
+	public int getPriority() {
+		return priority;
+	}
+
 	public Document getXML() {
 		try {
 			Document doc = XmlUtil.getDocument();
@@ -0,0 +1,79 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.isn.ctp.xds.sender;
+
+import java.io.File;
+import java.io.FileInputStream;
+import org.apache.commons.io.IOUtils;
+import org.dcm4che2.data.Tag;
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.ctp.objects.FileObject;
+
+/**
+ * A class to check that an object can be sent before it is stored
+ * in the study cache. An object is accepted if it is a DICOM part-10
+ * file with the UIDs that the KOS and the ITI-41 metadata require.
+ */
+public class IngestValidator {
+
+	private static final int[] requiredTags = {
+		Tag.StudyInstanceUID,
+		Tag.SeriesInstanceUID,
+		Tag.SOPInstanceUID,
+		Tag.SOPClassUID
+	};
+
+	private static final String[] requiredNames = {
+		"StudyInstanceUID",
+		"SeriesInstanceUID",
+		"SOPInstanceUID",
+		"SOPClassUID"
+	};
+
+	private IngestValidator() { }
+
+	/**
+	 * Check an object.
+	 * @param fileObject the object to be stored.
+	 * @return null if the object is acceptable; otherwise,
+	 * the reason why it is not.
+	 */
+	public static String check(FileObject fileObject) {
+		if (!(fileObject instanceof DicomObject)) return "not a DICOM object";
+		DicomObject dob = (DicomObject)fileObject;
+		if (!isPart10(dob.getFile())) return "not a DICOM part-10 file";
+		if (isBlank(dob.getTransferSyntaxUID())) return "missing TransferSyntaxUID";
+		for (int i=0; i<requiredTags.length; i++) {
+			if (isBlank(dob.getElementValue(requiredTags[i]))) return "missing " + requiredNames[i];
+		}
+		return null;
+	}
+
+	//Check for the DICM prefix that follows the 128-byte preamble.
+	private static boolean isPart10(File file) {
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			byte[] b = new byte[132];
+			int n = 0;
+			int k;
+			while ((n < b.length) && ((k = in.read(b, n, b.length - n)) != -1)) n += k;
+			return (n == b.length)
+					&& (b[128] == 'D') && (b[129] == 'I') && (b[130] == 'C') && (b[131] == 'M');
+		}
+		catch (Exception ex) { return false; }
+		finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	private static boolean isBlank(String s) {
+		return (s == null) || s.trim().equals("");
+	}
+
+}
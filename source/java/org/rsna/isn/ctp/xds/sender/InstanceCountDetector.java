@@ -0,0 +1,90 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.isn.ctp.xds.sender;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.dcm4che2.data.Tag;
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.ctp.objects.FileObject;
+import org.rsna.util.StringUtil;
+
+/**
+ * A CompletionDetector that compares the number of objects received with
+ * the expected counts in the headers. A study is complete when it has the
+ * number of objects in NumberOfStudyRelatedInstances, or when it has the
+ * number of series in NumberOfStudyRelatedSeries and each series has the
+ * number of objects in its NumberOfSeriesRelatedInstances. Studies whose
+ * objects carry none of these attributes are left to the quiet period.
+ */
+public class InstanceCountDetector implements CompletionDetector {
+
+	private final ConcurrentHashMap<String,Expected> studies = new ConcurrentHashMap<String,Expected>();
+
+	public String getName() {
+		return "instance count";
+	}
+
+	public boolean objectStored(XDSStudy study, FileObject fileObject, boolean added) {
+		if (!(fileObject instanceof DicomObject)) return false;
+		DicomObject dob = (DicomObject)fileObject;
+		String studyUID = study.getStudyUID();
+		int studyInstances = StringUtil.getInt(dob.getElementValue(Tag.NumberOfStudyRelatedInstances));
+		int studySeries = StringUtil.getInt(dob.getElementValue(Tag.NumberOfStudyRelatedSeries));
+		int seriesInstances = StringUtil.getInt(dob.getElementValue(Tag.NumberOfSeriesRelatedInstances));
+
+		//Only hold state for the studies that carry expected counts.
+		Expected e = studies.get(studyUID);
+		if (e == null) {
+			if ((studyInstances <= 0) && (studySeries <= 0) && (seriesInstances <= 0)) return false;
+			e = new Expected();
+			studies.put(studyUID, e);
+		}
+		if (studyInstances > 0) e.studyInstances = studyInstances;
+		if (studySeries > 0) e.studySeries = studySeries;
+		String seriesUID = dob.getSeriesInstanceUID();
+		if (seriesUID != null) {
+			Series s = e.series.get(seriesUID);
+			if (s == null) {
+				s = new Series();
+				e.series.put(seriesUID, s);
+			}
+			if (added) s.received++;
+			if (seriesInstances > 0) s.expected = seriesInstances;
+		}
+		boolean complete = e.isComplete(study.getSize());
+		if (complete) studies.remove(studyUID);
+		return complete;
+	}
+
+	public void forget(String studyUID) {
+		studies.remove(studyUID);
+	}
+
+	//The expected counts of a study
+	static class Expected {
+		int studyInstances = 0;
+		int studySeries = 0;
+		final HashMap<String,Series> series = new HashMap<String,Series>();
+		boolean isComplete(int size) {
+			if ((studyInstances > 0) && (size >= studyInstances)) return true;
+			if ((studySeries <= 0) || (series.size() < studySeries)) return false;
+			for (Series s : series.values()) {
+				if ((s.expected <= 0) || (s.received < s.expected)) return false;
+			}
+			return true;
+		}
+	}
+
+	//The expected and received counts of a series
+	static class Series {
+		int expected = 0;
+		int received = 0;
+	}
+
+}
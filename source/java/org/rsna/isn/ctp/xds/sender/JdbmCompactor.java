@@ -0,0 +1,151 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.isn.ctp.xds.sender;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import jdbm.RecordManager;
+import jdbm.RecordManagerFactory;
+import jdbm.RecordManagerOptions;
+import jdbm.htree.HTree;
+import org.apache.log4j.Logger;
+
+/**
+ * Static methods for compacting JDBM databases.
+ * <p>
+ * JDBM never returns the space of deleted or updated records to the file
+ * system, so a database is compacted by copying its live records into a
+ * fresh database under a temporary name and then swapping the files. The
+ * owner of the database is responsible for copying the records and for
+ * serializing the swap with its own updates; this class handles the files.
+ * <p>
+ * The swap moves the old files aside, moves the compacted files into place,
+ * and then deletes the old files. If the process stops during the swap, the
+ * recover method, which the owner calls before opening the database,
+ * completes it or rolls it back.
+ */
+public class JdbmCompactor {
+
+	static final Logger logger = Logger.getLogger(JdbmCompactor.class);
+
+	private static final String[] extensions = { ".db", ".lg" };
+
+	private JdbmCompactor() { }
+
+	/**
+	 * Get the base name under which a database is compacted.
+	 * @param base the base name of the database (without extension).
+	 */
+	public static File getCompactBase(File base) {
+		return new File(base.getParentFile(), base.getName() + ".compact");
+	}
+
+	/**
+	 * Create an empty RecordManager for the compacted copy of a database,
+	 * deleting any copy left by an earlier compaction.
+	 * @param base the base name of the database (without extension).
+	 */
+	public static RecordManager createCompactRecordManager(File base) throws IOException {
+		File compact = getCompactBase(base);
+		delete(compact);
+		Properties props = new Properties();
+		props.put( RecordManagerOptions.THREAD_SAFE, "true" );
+		return RecordManagerFactory.createRecordManager( compact.getAbsolutePath(), props );
+	}
+
+	/**
+	 * Create a named HTree in a RecordManager.
+	 */
+	public static HTree createHTree(RecordManager recman, String name) throws IOException {
+		HTree index = HTree.createInstance( recman );
+		recman.setNamedObject( name, index.getRecid() );
+		recman.commit();
+		return index;
+	}
+
+	/**
+	 * Get the total size of the files of a database.
+	 * @param base the base name of the database (without extension).
+	 */
+	public static long getSize(File base) {
+		long size = 0;
+		for (String ext : extensions) size += getFile(base, ext).length();
+		return size;
+	}
+
+	/**
+	 * Replace a database with its compacted copy. Both databases
+	 * must be closed.
+	 * @param base the base name of the database (without extension).
+	 */
+	public static void swap(File base) throws IOException {
+		File compact = getCompactBase(base);
+		File old = getOldBase(base);
+		delete(old);
+		move(base, old);
+		move(compact, base);
+		delete(old);
+	}
+
+	/**
+	 * Complete or roll back a swap that was interrupted, and delete the
+	 * files left by an interrupted compaction. This method must be called
+	 * before the database is opened.
+	 * @param base the base name of the database (without extension).
+	 */
+	public static void recover(File base) {
+		File compact = getCompactBase(base);
+		File old = getOldBase(base);
+		try {
+			if (!getFile(base, ".db").exists()) {
+				if (getFile(compact, ".db").exists() && getFile(old, ".db").exists()) {
+					logger.info("Completing the interrupted compaction of "+base);
+					move(compact, base);
+				}
+				else if (getFile(old, ".db").exists()) {
+					logger.info("Rolling back the interrupted compaction of "+base);
+					move(old, base);
+				}
+			}
+			delete(compact);
+			delete(old);
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to recover the interrupted compaction of "+base, ex);
+		}
+	}
+
+	private static File getOldBase(File base) {
+		return new File(base.getParentFile(), base.getName() + ".old");
+	}
+
+	private static File getFile(File base, String ext) {
+		return new File(base.getParentFile(), base.getName() + ext);
+	}
+
+	private static void move(File from, File to) throws IOException {
+		for (String ext : extensions) {
+			File source = getFile(from, ext);
+			File target = getFile(to, ext);
+			if (source.exists()) {
+				Files.move(source.toPath(), target.toPath(),
+							StandardCopyOption.REPLACE_EXISTING,
+							StandardCopyOption.ATOMIC_MOVE);
+			}
+			else target.delete(); //never pair a log with the wrong database
+		}
+	}
+
+	private static void delete(File base) {
+		for (String ext : extensions) getFile(base, ext).delete();
+	}
+
+}
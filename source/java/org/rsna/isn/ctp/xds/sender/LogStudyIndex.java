@@ -0,0 +1,284 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.isn.ctp.xds.sender;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.log4j.Logger;
+
+/**
+ * A StudyIndex that stores its entries in an append-only log,
+ * with periodic snapshots.
+ * <p>
+ * Each update appends a record to the log, so a commit costs one
+ * sequential write no matter how large the index is. When the log
+ * has grown past the size of the index, a snapshot of all the studies
+ * is written to a temporary file and renamed into place, and the log
+ * is truncated. On startup, the snapshot is read and then the log is
+ * replayed over it. A record that was truncated by a crash while it
+ * was being written fails its checksum and ends the replay, and the log
+ * is truncated after the last good record before new records are appended,
+ * so the records written after the crash are not hidden behind it.
+ * <p>
+ * If neither a snapshot nor a log exists, but the files of an
+ * XDSDatabase do, the studies are imported from the XDSDatabase and
+ * written to a new snapshot. The XDSDatabase files are not changed,
+ * so the jdbm index type can still be selected afterwards.
+ */
+public class LogStudyIndex extends AbstractStudyIndex {
+
+	static final Logger logger = Logger.getLogger(LogStudyIndex.class);
+
+	static final String indexName = "StudyIndex";
+
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+
+	//The minimum number of log records before a snapshot is taken
+	private static final int minSnapshotRecords = 1000;
+
+	private final File logFile;
+	private final File snapshotFile;
+	private final File tempFile;
+	private volatile FileOutputStream logStream = null;
+	private DataOutputStream log = null;
+	private int logRecords = 0;
+
+	//The number of records applied by the last replay
+	private int replayed = 0;
+
+	/**
+	 * Construct a LogStudyIndex.
+	 * @param indexRoot the directory within which the index can store its files,
+	 * @param commitInterval the maximum time in milliseconds that an update
+	 * which does not change the status of a study is held before being committed.
+	 * If this parameter is zero or negative, every update is committed immediately.
+	 * @param commitCount the maximum number of dirty studies held before a commit.
+	 */
+	public LogStudyIndex(File indexRoot, long commitInterval, int commitCount) {
+		super(commitInterval, commitCount);
+		logFile = new File(indexRoot, indexName + ".log");
+		snapshotFile = new File(indexRoot, indexName + ".snapshot");
+		tempFile = new File(indexRoot, indexName + ".snapshot.tmp");
+		tempFile.delete();
+		try {
+			if (!logFile.exists() && !snapshotFile.exists() && XDSDatabase.exists(indexRoot)) {
+				migrate(indexRoot);
+			}
+			else {
+				Map<String,XDSStudy> studies = new LinkedHashMap<String,XDSStudy>();
+				readSnapshot(studies);
+				long length = replayLog(studies);
+				logRecords = replayed;
+				if (logFile.length() > length) truncateLog(length);
+				for (XDSStudy study : studies.values()) load(study);
+				logger.info("Loaded "+studies.size()+" studies from the study index log");
+			}
+			openLog(true);
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to instantiate the study index log.", ex);
+			closeLog();
+		}
+		startCommitter();
+	}
+
+	protected void write(String studyUID, XDSStudy study) throws Exception {
+		byte[] bytes = serialize(study);
+		writeRecord(log, PUT, studyUID, bytes);
+		logRecords++;
+	}
+
+	protected void delete(String studyUID) throws Exception {
+		writeRecord(log, DELETE, studyUID, new byte[0]);
+		logRecords++;
+	}
+
+	protected void sync() throws Exception {
+		log.flush();
+		logStream.getFD().sync();
+		if (logRecords > Math.max(minSnapshotRecords, getStudyCount())) {
+			snapshot();
+		}
+	}
+
+	protected void closeStore() throws Exception {
+		closeLog();
+	}
+
+	protected boolean isOpen() {
+		return (logStream != null);
+	}
+
+	//Import the studies from an XDSDatabase and write them to a snapshot.
+	private void migrate(File indexRoot) throws Exception {
+		XDSDatabase database = new XDSDatabase(indexRoot);
+		try {
+			XDSStudy[] studies = database.getAllStudies();
+			for (XDSStudy study : studies) load(study);
+			writeSnapshot();
+			logger.info("Imported "+studies.length+" studies from the XDS studies database");
+		}
+		finally {
+			database.close();
+		}
+	}
+
+	//Write a snapshot of the index and truncate the log.
+	//This method must be called while holding the persistence lock.
+	private void snapshot() throws Exception {
+		writeSnapshot();
+		closeLog();
+		openLog(false);
+		logRecords = 0;
+	}
+
+	//Write all the studies to the temporary file and rename it into place.
+	private void writeSnapshot() throws Exception {
+		FileOutputStream fos = null;
+		DataOutputStream out = null;
+		try {
+			fos = new FileOutputStream(tempFile);
+			out = new DataOutputStream(new BufferedOutputStream(fos));
+			for (XDSStudy study : getAllStudies()) {
+				writeRecord(out, PUT, study.getStudyUID(), serialize(study));
+			}
+			out.flush();
+			fos.getFD().sync();
+			out.close();
+			out = null;
+			Files.move(tempFile.toPath(), snapshotFile.toPath(),
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			IOUtils.closeQuietly(out);
+			IOUtils.closeQuietly(fos);
+			tempFile.delete();
+		}
+	}
+
+	private void readSnapshot(Map<String,XDSStudy> studies) throws Exception {
+		if (snapshotFile.exists()) replay(snapshotFile, studies);
+	}
+
+	//Replay the log, returning the offset of the end of the last good record.
+	private long replayLog(Map<String,XDSStudy> studies) throws Exception {
+		replayed = 0;
+		return logFile.exists() ? replay(logFile, studies) : 0;
+	}
+
+	//Cut off the records after the last good record of the log, which were
+	//left by a crash, so the records appended from now on can be replayed.
+	private void truncateLog(long length) throws Exception {
+		logger.warn("Truncating "+logFile+" from "+logFile.length()+" to "+length+" bytes");
+		RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+		try {
+			raf.setLength(length);
+			raf.getFD().sync();
+		}
+		finally { raf.close(); }
+	}
+
+	//Apply the records in a file to a map of studies, returning the offset
+	//of the end of the last good record. The number of records applied is
+	//left in the replayed field.
+	private long replay(File file, Map<String,XDSStudy> studies) throws Exception {
+		int count = 0;
+		long length = 0;
+		long fileLength = file.length();
+		DataInputStream in = null;
+		try {
+			CountingInputStream cis = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+			in = new DataInputStream(cis);
+			while (true) {
+				byte op;
+				try { op = in.readByte(); }
+				catch (EOFException endOfFile) { break; }
+				String studyUID = in.readUTF();
+				//A torn length field can hold any value, so check it
+				//against the rest of the file before allocating the data.
+				int n = in.readInt();
+				if ((n < 0) || (n > fileLength - cis.getByteCount())) {
+					throw new IOException("Bad record length ("+n+")");
+				}
+				byte[] bytes = new byte[n];
+				in.readFully(bytes);
+				long crc = in.readLong();
+				if (crc != checksum(op, studyUID, bytes)) {
+					throw new IOException("Bad checksum");
+				}
+				if (op == PUT) studies.put(studyUID, deserialize(bytes));
+				else studies.remove(studyUID);
+				count++;
+				length = cis.getByteCount();
+			}
+		}
+		catch (IOException ex) {
+			//A record cut short by a crash ends the file.
+			logger.warn("Ignoring the records after record "+count+" in "+file+": "+ex.getMessage());
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+		}
+		replayed = count;
+		return length;
+	}
+
+	private void writeRecord(DataOutputStream out, byte op, String studyUID, byte[] bytes) throws Exception {
+		out.writeByte(op);
+		out.writeUTF(studyUID);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+		out.writeLong(checksum(op, studyUID, bytes));
+	}
+
+	private long checksum(byte op, String studyUID, byte[] bytes) throws Exception {
+		CRC32 crc = new CRC32();
+		crc.update(op);
+		crc.update(studyUID.getBytes("UTF-8"));
+		crc.update(bytes);
+		return crc.getValue();
+	}
+
+	private byte[] serialize(XDSStudy study) throws Exception {
+		return XDSStudyCodec.encode(study);
+	}
+
+	private XDSStudy deserialize(byte[] bytes) throws Exception {
+		return XDSStudyCodec.decode(bytes);
+	}
+
+	private void openLog(boolean append) throws Exception {
+		logStream = new FileOutputStream(logFile, append);
+		log = new DataOutputStream(new BufferedOutputStream(logStream));
+	}
+
+	private void closeLog() {
+		IOUtils.closeQuietly(log);
+		IOUtils.closeQuietly(logStream);
+		log = null;
+		logStream = null;
+	}
+
+}
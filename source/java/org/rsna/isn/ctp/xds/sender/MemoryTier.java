@@ -0,0 +1,283 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.isn.ctp.xds.sender;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * A memory tier for the objects of small studies in an XDSStudyCache.
+ * <p>
+ * The objects of a study are held in memory buffers, under the files they
+ * would occupy in the cache's directory layout, as long as the study is
+ * smaller than the study threshold and the tier is within its byte budget.
+ * The study's manifest is always written to the disk. When a study grows
+ * past the threshold, when the tier needs room, when the study has been in
+ * memory longer than the checkpoint age, or when the cache closes, the study
+ * is spilled: its objects are written to their files and the buffers are
+ * released. The objects of a study are always all in memory or all on disk.
+ * <p>
+ * The send path opens the objects with the static open method, which reads
+ * them from the memory tier if they are there and from the disk otherwise.
+ * Note that the objects held in memory are lost if the process stops without
+ * closing the cache; the checkpoint age bounds the time for which this is
+ * possible for each study.
+ * <p>
+ * The methods that change a study must be called while holding the cache's
+ * lock for that study.
+ */
+public class MemoryTier {
+
+	static final Logger logger = Logger.getLogger(MemoryTier.class);
+
+	//The tiers of all the caches, searched by the open method
+	private static final Set<MemoryTier> tiers = new CopyOnWriteArraySet<MemoryTier>();
+
+	private final long budget;
+	private final long threshold;
+	private final ConcurrentHashMap<File,StudyBuffer> studies = new ConcurrentHashMap<File,StudyBuffer>();
+	private final AtomicLong used = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong spills = new AtomicLong();
+
+	/**
+	 * Construct a MemoryTier.
+	 * @param budget the maximum number of bytes held in memory.
+	 * @param threshold the maximum size in bytes of a study held in memory.
+	 */
+	public MemoryTier(long budget, long threshold) {
+		this.budget = budget;
+		this.threshold = Math.min(threshold, budget);
+		tiers.add(this);
+	}
+
+	/**
+	 * Open an object for reading, from the memory tier that holds it
+	 * or from the disk if it is not held in memory.
+	 * @param file the object's file in the cache.
+	 * @return the stream.
+	 * @throws java.io.IOException if the file could not be opened.
+	 */
+	public static InputStream open(File file) throws java.io.IOException {
+		for (MemoryTier tier : tiers) {
+			byte[] data = tier.get(file);
+			if (data != null) {
+				tier.hits.incrementAndGet();
+				return new ByteArrayInputStream(data);
+			}
+		}
+		return new FileInputStream(file);
+	}
+
+	/**
+	 * Get the contents of an object held in memory.
+	 * @param file the object's file in the cache.
+	 * @return the contents, or null if the object is not held in memory.
+	 */
+	public byte[] get(File file) {
+		StudyBuffer sb = studies.get(file.getParentFile());
+		return (sb != null) ? sb.get(file.getName()) : null;
+	}
+
+	/**
+	 * Determine whether the objects of a study are held in memory.
+	 * @param studyDir the study's directory in the cache.
+	 */
+	public boolean holds(File studyDir) {
+		return studies.containsKey(studyDir);
+	}
+
+	/**
+	 * Determine whether an object can be stored in memory: the objects of its
+	 * study must already be in memory, or the study must have no objects on
+	 * the disk, and the study must stay under the threshold.
+	 * @param studyDir the study's directory in the cache.
+	 * @param studyBytes the size of the study's objects in bytes.
+	 * @param length the size of the object in bytes.
+	 */
+	public boolean accepts(File studyDir, long studyBytes, long length) {
+		if (!holds(studyDir) && (studyBytes > 0)) return false;
+		return (studyBytes + length) <= threshold;
+	}
+
+	/**
+	 * Determine whether the tier has room for an object.
+	 * @param length the size of the object in bytes.
+	 */
+	public boolean hasRoom(long length) {
+		return (used.get() + length) <= budget;
+	}
+
+	/**
+	 * Store an object in memory.
+	 * @param studyUID the StudyInstanceUID of the object's study.
+	 * @param source the file to be stored.
+	 * @param dest the object's file in the cache.
+	 * @return the hex SHA-1 digest of the object, or null if it could not be read.
+	 */
+	public String put(String studyUID, File source, File dest) {
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(source);
+			byte[] data = IOUtils.toByteArray(in);
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			String digest = CacheWriter.toHex(md.digest(data));
+			File dir = dest.getParentFile();
+			StudyBuffer sb = studies.get(dir);
+			if (sb == null) {
+				sb = new StudyBuffer(studyUID);
+				studies.put(dir, sb);
+			}
+			used.addAndGet(sb.put(dest.getName(), data));
+			return digest;
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to read "+source+" into memory", ex);
+			return null;
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Write the objects of a study to the disk and release their buffers.
+	 * @param studyDir the study's directory in the cache.
+	 * @param writer the CacheWriter with which the objects are written.
+	 * @return true if the study was spilled; false if it was not held in
+	 * memory or an object could not be written (in which case the study
+	 * is left in memory).
+	 */
+	public boolean spill(File studyDir, CacheWriter writer) {
+		StudyBuffer sb = studies.get(studyDir);
+		if (sb == null) return false;
+		studyDir.mkdirs();
+		for (String filename : sb.getFilenames()) {
+			if (!writer.write(sb.get(filename), new File(studyDir, filename))) {
+				logger.warn("Unable to spill "+studyDir+" to the disk");
+				return false;
+			}
+		}
+		studies.remove(studyDir);
+		used.addAndGet(-sb.getBytes());
+		spills.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Release the buffers of a study without writing them.
+	 * @param studyDir the study's directory in the cache.
+	 */
+	public void discard(File studyDir) {
+		StudyBuffer sb = studies.remove(studyDir);
+		if (sb != null) used.addAndGet(-sb.getBytes());
+	}
+
+	/**
+	 * Get the studies held in memory, oldest first.
+	 * @return the StudyInstanceUIDs and directories of the studies.
+	 */
+	public List<Held> getStudies() {
+		List<Held> list = new ArrayList<Held>();
+		for (File dir : studies.keySet()) {
+			StudyBuffer sb = studies.get(dir);
+			if (sb != null) list.add(new Held(sb.studyUID, dir, sb.created));
+		}
+		java.util.Collections.sort(list);
+		return list;
+	}
+
+	/**
+	 * Get the number of bytes held in memory.
+	 */
+	public long getUsedBytes() {
+		return used.get();
+	}
+
+	/**
+	 * Get the byte budget of the tier.
+	 */
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Remove the tier from the tiers searched by the open method.
+	 */
+	public void close() {
+		tiers.remove(this);
+	}
+
+	/**
+	 * Get HTML table rows displaying the state of the tier.
+	 */
+	public String getStatusHTML() {
+		return "<tr><td width=\"20%\">Memory tier:</td><td>"
+				+ studies.size() + " studies, "
+				+ String.format("%.1f MB of %d MB, ", ((double)used.get()) / (1024 * 1024), budget / (1024 * 1024))
+				+ hits.get() + " objects read from memory, "
+				+ spills.get() + " studies spilled</td></tr>";
+	}
+
+	/**
+	 * A study held in memory.
+	 */
+	public static class Held implements Comparable<Held> {
+		public final String studyUID;
+		public final File studyDir;
+		public final long created;
+		public Held(String studyUID, File studyDir, long created) {
+			this.studyUID = studyUID;
+			this.studyDir = studyDir;
+			this.created = created;
+		}
+		public int compareTo(Held h) {
+			return (created < h.created) ? -1 : ((created > h.created) ? 1 : 0);
+		}
+	}
+
+	//The objects of a study held in memory
+	static class StudyBuffer {
+		final String studyUID;
+		final long created = System.currentTimeMillis();
+		private final LinkedHashMap<String,byte[]> objects = new LinkedHashMap<String,byte[]>();
+		private long bytes = 0;
+		public StudyBuffer(String studyUID) {
+			this.studyUID = studyUID;
+		}
+		//Store an object, returning the change in the size of the study.
+		public synchronized long put(String filename, byte[] data) {
+			byte[] old = objects.put(filename, data);
+			long delta = data.length - ((old != null) ? old.length : 0);
+			bytes += delta;
+			return delta;
+		}
+		public synchronized byte[] get(String filename) {
+			return objects.get(filename);
+		}
+		public synchronized List<String> getFilenames() {
+			return new ArrayList<String>(objects.keySet());
+		}
+		public synchronized long getBytes() {
+			return bytes;
+		}
+	}
+
+}
@@ -0,0 +1,181 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.isn.ctp.xds.sender;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * A persistent record of the transmissions that have been queued and
+ * not yet finished, stored in the index directory of an XDSStudyCache.
+ * <p>
+ * A record is appended to the journal file when a transmission is queued
+ * and when it finishes (or is cancelled). When the journal is opened, the
+ * unfinished transmissions are read in the order in which they were
+ * queued, and the journal is rewritten to contain only those. A record
+ * that was truncated by a crash while it was being written ends the file.
+ */
+public class SendJournal {
+
+	static final Logger logger = Logger.getLogger(SendJournal.class);
+
+	static final String journalName = "SendJournal";
+
+	private static final byte QUEUED = 1;
+	private static final byte FINISHED = 2;
+
+	private final File file;
+	private final File tempFile;
+	private final LinkedHashMap<String,List<String>> pending = new LinkedHashMap<String,List<String>>();
+	private FileOutputStream fos = null;
+	private DataOutputStream out = null;
+
+	/**
+	 * Open the journal, creating it if necessary.
+	 * @param indexRoot the directory within which the journal is stored.
+	 */
+	public SendJournal(File indexRoot) {
+		file = new File(indexRoot, journalName + ".log");
+		tempFile = new File(indexRoot, journalName + ".tmp");
+		try {
+			read();
+			rewrite();
+			fos = new FileOutputStream(file, true);
+			out = new DataOutputStream(new BufferedOutputStream(fos));
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to open the send journal "+file, ex);
+			close();
+		}
+	}
+
+	/**
+	 * Get the unfinished transmissions found when the journal was opened,
+	 * in the order in which they were queued.
+	 * @return a map from StudyInstanceUID to the list of destination keys.
+	 */
+	public synchronized LinkedHashMap<String,List<String>> getPendingTransmissions() {
+		return new LinkedHashMap<String,List<String>>(pending);
+	}
+
+	/**
+	 * Record that a transmission has been queued.
+	 * @param studyUID the StudyInstanceUID of the study.
+	 * @param keys the destination keys of the transmission.
+	 */
+	public synchronized void queued(String studyUID, List<String> keys) {
+		pending.remove(studyUID);
+		pending.put(studyUID, new ArrayList<String>(keys));
+		append(QUEUED, studyUID, keys);
+	}
+
+	/**
+	 * Record that a transmission has finished or has been cancelled.
+	 * @param studyUID the StudyInstanceUID of the study.
+	 */
+	public synchronized void finished(String studyUID) {
+		if (pending.remove(studyUID) != null) {
+			append(FINISHED, studyUID, new ArrayList<String>());
+		}
+	}
+
+	/**
+	 * Close the journal.
+	 */
+	public synchronized void close() {
+		IOUtils.closeQuietly(out);
+		IOUtils.closeQuietly(fos);
+		out = null;
+		fos = null;
+	}
+
+	private void append(byte op, String studyUID, List<String> keys) {
+		if (out == null) return;
+		try {
+			write(out, op, studyUID, keys);
+			out.flush();
+			fos.getFD().sync();
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to update the send journal", ex);
+		}
+	}
+
+	private void write(DataOutputStream out, byte op, String studyUID, List<String> keys) throws IOException {
+		out.writeByte(op);
+		out.writeUTF(studyUID);
+		out.writeShort(keys.size());
+		for (String key : keys) out.writeUTF(key);
+	}
+
+	//Read the journal into the table of pending transmissions.
+	private void read() {
+		if (!file.exists()) return;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			while (true) {
+				byte op;
+				try { op = in.readByte(); }
+				catch (EOFException endOfJournal) { break; }
+				String studyUID = in.readUTF();
+				int n = in.readUnsignedShort();
+				List<String> keys = new ArrayList<String>();
+				for (int i=0; i<n; i++) keys.add(in.readUTF());
+				pending.remove(studyUID);
+				if (op == QUEUED) pending.put(studyUID, keys);
+			}
+		}
+		catch (IOException ex) {
+			logger.warn("Ignoring the truncated end of the send journal "+file);
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	//Rewrite the journal to contain only the pending transmissions.
+	private void rewrite() throws Exception {
+		FileOutputStream tfos = null;
+		DataOutputStream tout = null;
+		try {
+			tfos = new FileOutputStream(tempFile);
+			tout = new DataOutputStream(new BufferedOutputStream(tfos));
+			for (String studyUID : pending.keySet()) {
+				write(tout, QUEUED, studyUID, pending.get(studyUID));
+			}
+			tout.flush();
+			tfos.getFD().sync();
+			tout.close();
+			tout = null;
+			Files.move(tempFile.toPath(), file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			IOUtils.closeQuietly(tout);
+			IOUtils.closeQuietly(tfos);
+			tempFile.delete();
+		}
+	}
+
+}
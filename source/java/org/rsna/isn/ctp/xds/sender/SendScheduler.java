@@ -0,0 +1,334 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.isn.ctp.xds.sender;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.log4j.Logger;
+import org.rsna.util.StringUtil;
+import org.w3c.dom.Element;
+
+/**
+ * The scheduler for study transmissions, shared by all the XDSStudyCaches.
+ * <p>
+ * Each XDSStudyCache has its own queue, ordered according to the sendOrder
+ * attribute of its stage:
+ * <ul>
+ * <li>fifo: in the order in which the studies were queued (the default)
+ * <li>smallest: the studies with the fewest objects first
+ * <li>priority: the studies for the destinations with the highest priority
+ * attribute first
+ * </ul>
+ * Ties are broken in FIFO order. When a transmission finishes, the queues
+ * are visited in round-robin order, so the stages share the thread pool
+ * fairly. A study is not started if its destination already has the maximum
+ * number of transmissions in progress; the next study in the queue is started
+ * instead. A transmission of one study to several destinations counts against
+ * the limit of each destination.
+ * <p>
+ * The number of transmissions in progress in all the stages together is
+ * limited by the maxTotalSendThreads attribute. The smallest value specified
+ * by any stage applies; if no stage specifies it, the largest maxSendThreads
+ * of any stage applies. Within that limit, the maxSendThreads attribute of
+ * each stage limits the transmissions of that stage. Transmissions to a
+ * destination key are counted across all the stages, since stages that use
+ * the same key send to the same destination; the maxSendsPerDestination
+ * attribute of a stage limits the transmissions that the stage starts to
+ * any one key.
+ */
+public class SendScheduler {
+
+	static final Logger logger = Logger.getLogger(SendScheduler.class);
+
+	public static final String FIFO = "fifo";
+	public static final String SMALLEST = "smallest";
+	public static final String PRIORITY = "priority";
+
+	private static SendScheduler scheduler = null;
+
+	private final HashMap<String,Integer> maxThreads = new HashMap<String,Integer>();
+	private final HashMap<String,Integer> maxTotalThreads = new HashMap<String,Integer>();
+	private final HashMap<String,Integer> maxPerDestination = new HashMap<String,Integer>();
+	private final HashMap<String,Integer> runningCounts = new HashMap<String,Integer>();
+	private final ExecutorService execSvc = Executors.newCachedThreadPool();
+
+	private final LinkedHashMap<String,TreeSet<SendJob>> queues = new LinkedHashMap<String,TreeSet<SendJob>>();
+	private final HashMap<String,String> orders = new HashMap<String,String>();
+	private final HashSet<String> suspended = new HashSet<String>();
+	private final HashMap<String,Integer> destinationCounts = new HashMap<String,Integer>();
+	private int running = 0;
+	private long sequence = 0;
+	private String lastContext = null;
+
+	static final int defaultMaxThreads = 4;
+
+	protected SendScheduler() { }
+
+	/**
+	 * Get the singleton instance of the SendScheduler, creating it if necessary.
+	 */
+	public static synchronized SendScheduler getInstance() {
+		if (scheduler == null) scheduler = new SendScheduler();
+		return scheduler;
+	}
+
+	/**
+	 * Register a context and apply the limits specified by its stage.
+	 * @param context the context of the XDSStudyCache.
+	 * @param element the configuration element of the stage.
+	 */
+	public synchronized void configure(String context, Element element) {
+		suspended.remove(context);
+		maxThreads.put(context, StringUtil.getInt(element.getAttribute("maxSendThreads")));
+		maxTotalThreads.put(context, StringUtil.getInt(element.getAttribute("maxTotalSendThreads")));
+		maxPerDestination.put(context, StringUtil.getInt(element.getAttribute("maxSendsPerDestination")));
+		String order = element.getAttribute("sendOrder").trim().toLowerCase();
+		if (!order.equals(SMALLEST) && !order.equals(PRIORITY)) order = FIFO;
+		if (!order.equals(orders.get(context))) {
+			orders.put(context, order);
+			TreeSet<SendJob> oldQueue = queues.get(context);
+			TreeSet<SendJob> queue = new TreeSet<SendJob>(getComparator(order));
+			if (oldQueue != null) queue.addAll(oldQueue);
+			queues.put(context, queue);
+		}
+	}
+
+	/**
+	 * Stop starting the queued transmissions of a context. Transmissions
+	 * can still be queued, but none is started until the context is
+	 * configured again.
+	 * @param context the context of the XDSStudyCache.
+	 */
+	public synchronized void suspend(String context) {
+		suspended.add(context);
+	}
+
+	/**
+	 * Queue a transmission. If the study is already queued in the
+	 * same context, the queued transmission is replaced.
+	 * @param context the context of the XDSStudyCache.
+	 * @param studyUID the StudyInstanceUID of the study.
+	 * @param keys the keys of the destinations.
+	 * @param size the number of objects in the study.
+	 * @param priority the priority of the transmission (larger values first).
+	 * @param task the task that transmits the study.
+	 */
+	public synchronized void submit(String context, String studyUID, List<String> keys, int size, int priority, Runnable task) {
+		TreeSet<SendJob> queue = getQueue(context);
+		removeJob(queue, studyUID);
+		queue.add( new SendJob(context, studyUID, keys, size, priority, sequence++, task) );
+		dispatch();
+	}
+
+	/**
+	 * Remove a queued transmission. A transmission in progress is not affected.
+	 * @param context the context of the XDSStudyCache.
+	 * @param studyUID the StudyInstanceUID of the study.
+	 * @return true if a queued transmission was removed.
+	 */
+	public synchronized boolean cancel(String context, String studyUID) {
+		return removeJob(getQueue(context), studyUID);
+	}
+
+	/**
+	 * Get the position of a study in the queue of its context.
+	 * @param context the context of the XDSStudyCache.
+	 * @param studyUID the StudyInstanceUID of the study.
+	 * @return the position (starting at 1), or 0 if the study is not queued.
+	 */
+	public synchronized int getPosition(String context, String studyUID) {
+		int position = 0;
+		for (SendJob job : getQueue(context)) {
+			position++;
+			if (job.studyUID.equals(studyUID)) return position;
+		}
+		return 0;
+	}
+
+	/**
+	 * Get the positions of all the studies in the queue of a context.
+	 * @param context the context of the XDSStudyCache.
+	 * @return a map from StudyInstanceUID to position (starting at 1).
+	 */
+	public synchronized HashMap<String,Integer> getQueuedPositions(String context) {
+		HashMap<String,Integer> positions = new HashMap<String,Integer>();
+		int position = 0;
+		for (SendJob job : getQueue(context)) positions.put(job.studyUID, ++position);
+		return positions;
+	}
+
+	/**
+	 * Get the number of studies queued in a context.
+	 * @param context the context of the XDSStudyCache.
+	 */
+	public synchronized int getQueueSize(String context) {
+		return getQueue(context).size();
+	}
+
+	/**
+	 * Get the number of transmissions in progress in all contexts.
+	 */
+	public synchronized int getRunningCount() {
+		return running;
+	}
+
+	//Start as many queued jobs as the limits allow.
+	private void dispatch() {
+		SendJob job;
+		while ( (job = next()) != null ) {
+			queues.get(job.context).remove(job);
+			running++;
+			runningCounts.put(job.context, getRunningCount(job.context) + 1);
+			for (String key : job.keys) {
+				destinationCounts.put(key, getCount(destinationCounts, key) + 1);
+			}
+			lastContext = job.context;
+			execSvc.execute(job);
+		}
+	}
+
+	//Find the next job to start, visiting the queues of the contexts that
+	//are below their thread limits in round-robin order, beginning with
+	//the queue after the last one served. No job is started while the
+	//scheduler is at its total limit.
+	private SendJob next() {
+		if (running >= getTotalLimit()) return null;
+		List<String> contexts = new ArrayList<String>(queues.keySet());
+		int start = (lastContext != null) ? contexts.indexOf(lastContext) + 1 : 0;
+		for (int i=0; i<contexts.size(); i++) {
+			String context = contexts.get( (start + i) % contexts.size() );
+			if (suspended.contains(context)) continue;
+			if (getRunningCount(context) >= getLimit(context)) continue;
+			for (SendJob job : queues.get(context)) {
+				if (isEligible(job)) return job;
+			}
+		}
+		return null;
+	}
+
+	private synchronized void finished(SendJob job) {
+		running--;
+		runningCounts.put(job.context, getRunningCount(job.context) - 1);
+		for (String key : job.keys) {
+			destinationCounts.put(key, getCount(destinationCounts, key) - 1);
+		}
+		dispatch();
+	}
+
+	//Determine whether all the destinations of a job are below the limit of its
+	//context, counting the transmissions of all the contexts to each destination.
+	private boolean isEligible(SendJob job) {
+		int limit = getCount(maxPerDestination, job.context);
+		if (limit <= 0) return true;
+		for (String key : job.keys) {
+			if (getCount(destinationCounts, key) >= limit) return false;
+		}
+		return true;
+	}
+
+	//Get the thread limit of a context.
+	private int getLimit(String context) {
+		int limit = getCount(maxThreads, context);
+		return (limit > 0) ? limit : defaultMaxThreads;
+	}
+
+	//Get the limit on the transmissions in progress in all the contexts:
+	//the smallest maxTotalSendThreads of any context or, if none specifies
+	//one, the largest thread limit of any context.
+	private int getTotalLimit() {
+		int total = 0;
+		for (int limit : maxTotalThreads.values()) {
+			if ((limit > 0) && ((total == 0) || (limit < total))) total = limit;
+		}
+		if (total > 0) return total;
+		for (String context : maxThreads.keySet()) total = Math.max(total, getLimit(context));
+		return (total > 0) ? total : defaultMaxThreads;
+	}
+
+	private int getRunningCount(String context) {
+		return getCount(runningCounts, context);
+	}
+
+	private static int getCount(HashMap<String,Integer> counts, String key) {
+		Integer count = counts.get(key);
+		return (count != null) ? count.intValue() : 0;
+	}
+
+	private TreeSet<SendJob> getQueue(String context) {
+		TreeSet<SendJob> queue = queues.get(context);
+		if (queue == null) {
+			orders.put(context, FIFO);
+			queue = new TreeSet<SendJob>(getComparator(FIFO));
+			queues.put(context, queue);
+		}
+		return queue;
+	}
+
+	private boolean removeJob(TreeSet<SendJob> queue, String studyUID) {
+		Iterator<SendJob> it = queue.iterator();
+		while (it.hasNext()) {
+			if (it.next().studyUID.equals(studyUID)) {
+				it.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Comparator<SendJob> getComparator(final String order) {
+		return new Comparator<SendJob>() {
+			public int compare(SendJob j1, SendJob j2) {
+				int c = 0;
+				if (order.equals(SMALLEST)) c = compareLongs(j1.size, j2.size);
+				else if (order.equals(PRIORITY)) c = compareLongs(j2.priority, j1.priority);
+				return (c != 0) ? c : compareLongs(j1.sequence, j2.sequence);
+			}
+		};
+	}
+
+	private static int compareLongs(long x, long y) {
+		return (x < y) ? -1 : ((x > y) ? 1 : 0);
+	}
+
+	//A queued transmission
+	class SendJob implements Runnable {
+
+		final String context;
+		final String studyUID;
+		final List<String> keys;
+		final int size;
+		final int priority;
+		final long sequence;
+		final Runnable task;
+
+		public SendJob(String context, String studyUID, List<String> keys, int size, int priority, long sequence, Runnable task) {
+			this.context = context;
+			this.studyUID = studyUID;
+			this.keys = keys;
+			this.size = size;
+			this.priority = priority;
+			this.sequence = sequence;
+			this.task = task;
+		}
+
+		public void run() {
+			try { task.run(); }
+			catch (Exception ex) { logger.warn("Transmission of "+studyUID+" failed", ex); }
+			finally { finished(this); }
+		}
+	}
+
+}
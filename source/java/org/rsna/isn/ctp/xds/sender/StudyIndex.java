@@ -0,0 +1,102 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.isn.ctp.xds.sender;
+
+/**
+ * The interface of the storage engines that hold the database
+ * entries of the studies in an XDSStudyCache.
+ */
+public interface StudyIndex {
+
+	/**
+	 * Get a study from the index.
+	 * @param studyUID the UID of the study to fetch
+	 * @return the study or null if the studyUID does
+	 * not exist in the index.
+	 */
+	public XDSStudy get(String studyUID);
+
+	/**
+	 * Insert a study by its StudyInstanceUID
+	 * @param study the study to store. Note: the
+	 * studyUID key is obtained from the XDSStudy object.
+	 */
+	public void put(XDSStudy study);
+
+	/**
+	 * Remove a study
+	 * @param study the study to remove. Note: the
+	 * studyUID key is obtained from the XDSStudy object.
+	 */
+	public void remove(XDSStudy study);
+
+	/**
+	 * Make all pending updates persistent.
+	 */
+	public void commit();
+
+	/**
+	 * Set an action to be run before every commit, for example to
+	 * force the files referenced by the pending updates to the disk.
+	 * @param barrier the action, or null if there is none.
+	 */
+	public void setCommitBarrier(Runnable barrier);
+
+	/**
+	 * Get an array of all the studies in the index, in no particular order.
+	 */
+	public XDSStudy[] getAllStudies();
+
+	/**
+	 * Get an array of studies that are either OPEN or COMPLETE,
+	 * sorted on PatientID.
+	 */
+	public XDSStudy[] getActiveStudies();
+
+	/**
+	 * Get an array of studies that have the status QUEUED, INTRANSIT, SUCCESS or FAILED,
+	 * sorted on PatientID.
+	 */
+	public XDSStudy[] getSentStudies();
+
+	/**
+	 * Get an array of all the studies with a specified status,
+	 * sorted on PatientID.
+	 * @param studyStatus the status of the studies to be returned.
+	 */
+	public XDSStudy[] getStudies(XDSStudyStatus studyStatus);
+
+	/**
+	 * Get the number of studies that are COMPLETE.
+	 */
+	public int getCompleteStudyCount();
+
+	/**
+	 * Get the number of studies that are INTRANSIT.
+	 */
+	public int getInTransitStudyCount();
+
+	/**
+	 * Get the total number of studies that are in the index.
+	 */
+	public int getStudyCount();
+
+	/**
+	 * Commit changes and close the index.
+	 * No errors are reported and no operations
+	 * are available after this call.
+	 */
+	public void close();
+
+	/**
+	 * Indicate whether the index is closed.
+	 * return true if the index is closed; false otherwise.
+	 */
+	public boolean isClosed();
+
+}
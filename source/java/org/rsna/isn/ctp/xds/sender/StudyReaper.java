@@ -0,0 +1,201 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.isn.ctp.xds.sender;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * A thread that deletes the directories of studies that have been
+ * removed from an XDSStudyCache, at a limited rate.
+ * <p>
+ * A directory is reaped by renaming it into the reaper's directory,
+ * which is quick and makes the study's location available immediately,
+ * and queueing it for deletion. The thread deletes the queued directories
+ * one file at a time, sleeping as necessary to keep the deletion rate
+ * within the configured number of files per second and MB per second.
+ * As each file is deleted, its size is subtracted from the occupancy of
+ * the cache. Directories left in the reaper's directory by a previous
+ * run are deleted when the thread starts.
+ */
+public class StudyReaper extends Thread {
+
+	static final Logger logger = Logger.getLogger(StudyReaper.class);
+
+	private final File reaperRoot;
+	private final AtomicLong occupancy;
+	private final double filesPerSecond;
+	private final double bytesPerSecond;
+	private final LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<Entry>();
+
+	private final AtomicLong pendingBytes = new AtomicLong();
+	private final AtomicLong filesDeleted = new AtomicLong();
+	private final AtomicLong bytesReclaimed = new AtomicLong();
+
+	//The start of the current run of deletions and the work done in it
+	private long runStart = 0;
+	private long runFiles = 0;
+	private long runBytes = 0;
+
+	/**
+	 * Construct a StudyReaper.
+	 * @param name the name of the thread.
+	 * @param reaperRoot the directory into which directories are moved for deletion.
+	 * It must be on the same filesystem as the cache.
+	 * @param occupancy the counter of the bytes occupied by the cache.
+	 * @param filesPerSecond the maximum deletion rate in files per second (0 means no limit).
+	 * @param mbPerSecond the maximum deletion rate in MB per second (0 means no limit).
+	 */
+	public StudyReaper(String name, File reaperRoot, AtomicLong occupancy, double filesPerSecond, double mbPerSecond) {
+		super(name);
+		setDaemon(true);
+		setPriority(Thread.MIN_PRIORITY);
+		this.reaperRoot = reaperRoot;
+		this.occupancy = occupancy;
+		this.filesPerSecond = filesPerSecond;
+		this.bytesPerSecond = mbPerSecond * 1024 * 1024;
+		reaperRoot.mkdirs();
+		File[] leftovers = reaperRoot.listFiles();
+		if (leftovers != null) {
+			for (File dir : leftovers) queue.add( new Entry(dir, 0) );
+		}
+	}
+
+	/**
+	 * Queue the directory of a study for deletion.
+	 * @param dir the directory of the study.
+	 * @param bytes the number of bytes of the study that are counted
+	 * in the occupancy of the cache.
+	 * @return true if the directory was queued; false if it could not
+	 * be moved into the reaper's directory.
+	 */
+	public boolean reap(File dir, long bytes) {
+		if (!dir.exists()) {
+			occupancy.addAndGet(-bytes);
+			return true;
+		}
+		File target = new File(reaperRoot, dir.getName() + "." + System.nanoTime());
+		try {
+			Files.move(dir.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			pendingBytes.addAndGet(bytes);
+			queue.add( new Entry(target, bytes) );
+			return true;
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to move "+dir+" to the reaper", ex);
+			return false;
+		}
+	}
+
+	/**
+	 * Get the number of bytes queued for deletion that are counted
+	 * in the occupancy of the cache.
+	 */
+	public long getPendingBytes() {
+		return pendingBytes.get();
+	}
+
+	/**
+	 * Get HTML table rows displaying the work of the reaper.
+	 */
+	public String getStatusHTML() {
+		double mb = ((double)bytesReclaimed.get()) / (1024 * 1024);
+		return "<tr><td width=\"20%\">Reaper:</td><td>"
+				+ queue.size() + " studies queued, "
+				+ filesDeleted.get() + " files deleted, "
+				+ String.format("%.1f MB reclaimed", mb) + "</td></tr>";
+	}
+
+	public void run() {
+		while (!isInterrupted()) {
+			Entry entry;
+			try {
+				entry = queue.poll();
+				if (entry == null) {
+					runStart = 0;
+					entry = queue.take();
+				}
+			}
+			catch (InterruptedException ex) { return; }
+			if (runStart == 0) {
+				runStart = System.currentTimeMillis();
+				runFiles = 0;
+				runBytes = 0;
+			}
+			if (!delete(entry)) return;
+		}
+	}
+
+	//Delete the files of a directory, depth first, and then the directory.
+	//Return false if the thread was interrupted.
+	private boolean delete(Entry entry) {
+		LinkedList<File> stack = new LinkedList<File>();
+		LinkedList<File> dirs = new LinkedList<File>();
+		stack.push(entry.dir);
+		long remaining = entry.bytes;
+		while (!stack.isEmpty()) {
+			File file = stack.pop();
+			if (file.isDirectory()) {
+				dirs.push(file);
+				File[] files = file.listFiles();
+				if (files != null) for (File f : files) stack.push(f);
+			}
+			else {
+				long length = file.length();
+				if (file.delete()) {
+					filesDeleted.incrementAndGet();
+					bytesReclaimed.addAndGet(length);
+					long counted = Math.min(length, remaining);
+					if (counted > 0) {
+						remaining -= counted;
+						pendingBytes.addAndGet(-counted);
+						occupancy.addAndGet(-counted);
+					}
+					runFiles++;
+					runBytes += length;
+					if (!throttle()) return false;
+				}
+			}
+		}
+		while (!dirs.isEmpty()) dirs.pop().delete();
+		if (remaining > 0) {
+			pendingBytes.addAndGet(-remaining);
+			occupancy.addAndGet(-remaining);
+		}
+		return true;
+	}
+
+	//Sleep until the work done in the current run is within the rate limits.
+	//Return false if the thread was interrupted.
+	private boolean throttle() {
+		double seconds = 0;
+		if (filesPerSecond > 0) seconds = Math.max(seconds, runFiles / filesPerSecond);
+		if (bytesPerSecond > 0) seconds = Math.max(seconds, runBytes / bytesPerSecond);
+		long delay = runStart + (long)(seconds * 1000) - System.currentTimeMillis();
+		if (delay > 0) {
+			try { Thread.sleep(delay); }
+			catch (InterruptedException ex) { return false; }
+		}
+		return true;
+	}
+
+	static class Entry {
+		final File dir;
+		final long bytes;
+		public Entry(File dir, long bytes) {
+			this.dir = dir;
+			this.bytes = bytes;
+		}
+	}
+
+}
@@ -8,8 +8,7 @@
 package org.rsna.isn.ctp.xds.sender;
 
 import java.io.File;
-import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.Properties;
 import jdbm.helper.FastIterator;
 import jdbm.htree.HTree;
@@ -17,259 +16,200 @@ import jdbm.RecordManager;
 import jdbm.RecordManagerFactory;
 import jdbm.RecordManagerOptions;
 import org.apache.log4j.Logger;
-import org.rsna.util.StringUtil;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 
 /**
- * A database to store entries containing key data about cached studies.
+ * A StudyIndex that stores its entries in a JDBM HTree.
+ * The entries are stored as XDSStudyCodec records; entries
+ * stored as serialized XDSStudy objects are still read.
+ * <p>
+ * The database can be compacted while it is in use. The live entries are
+ * copied from the in-memory table into a fresh database without holding
+ * the persistence lock, and then, holding the lock, the entries that were
+ * written or deleted during the copy are brought up to date and the files
+ * are swapped.
  */
-public class XDSDatabase {
+public class XDSDatabase extends AbstractStudyIndex {
 
 	static final Logger logger = Logger.getLogger(XDSDatabase.class);
 
-	private static final String databaseName = "XDSDatabase";
+	static final String databaseName = "XDSDatabase";
 	private static final String studiesHTreeName = "studies";
-	private static final String destinationsHTreeName = "destinations";
-	private RecordManager recman = null;
+	private volatile RecordManager recman = null;
 	private HTree studies = null;
 
 	private File indexRoot;
 
+	//The StudyInstanceUIDs of the entries written or deleted
+	//during a compaction, or null if no compaction is running
+	private HashSet<String> changed = null;
+	private long lastCompactionTime = 0;
+	private long lastReclaimedBytes = 0;
+
 	/**
-	 * Construct an XDSDatabase.
+	 * Construct an XDSDatabase which commits every update immediately.
 	 * @param indexRoot the directory within which the database can store its files,
 	 */
 	public XDSDatabase(File indexRoot) {
-		this.indexRoot = indexRoot;
-		loadDatabase(indexRoot);
+		this(indexRoot, 0, 1);
 	}
 
 	/**
-	 * Get a study from the database.
-	 * @param studyUID the UID of the study to fetch
-	 * @return the study or null if the studyUID does
-	 * not exist in the database.
+	 * Construct an XDSDatabase.
+	 * @param indexRoot the directory within which the database can store its files,
+	 * @param commitInterval the maximum time in milliseconds that an update
+	 * which does not change the status of a study is held before being committed.
+	 * If this parameter is zero or negative, every update is committed immediately.
+	 * @param commitCount the maximum number of dirty studies held before a commit.
 	 */
-	public synchronized XDSStudy get(String studyUID) {
-		try { return (XDSStudy)studies.get(studyUID); }
-		catch (Exception ex) { return null; }
+	public XDSDatabase(File indexRoot, long commitInterval, int commitCount) {
+		super(commitInterval, commitCount);
+		this.indexRoot = indexRoot;
+		JdbmCompactor.recover(new File(indexRoot, databaseName));
+		loadDatabase(indexRoot);
+		loadTable();
+		startCommitter();
 	}
 
 	/**
-	 * Insert a study by its StudyInstanceUID
-	 * @param study the study to store. Note: the
-	 * studyUID key is obtained from the XDSStudy object.
+	 * Determine whether the JDBM files of an XDSDatabase exist in a directory.
+	 * @param indexRoot the directory within which the database stores its files,
 	 */
-	public synchronized void put(XDSStudy study) {
-		try {
-			studies.put(study.getStudyUID(), study);
-			recman.commit();
-		}
-		catch (Exception ex) {
-			logger.warn("Unable to update the study database", ex);
-		}
+	public static boolean exists(File indexRoot) {
+		return new File(indexRoot, databaseName + ".db").exists();
 	}
 
-	/**
-	 * Remove a study
-	 * @param study the study to remove. Note: the
-	 * studyUID key is obtained from the XDSStudy object.
-	 */
-	public synchronized void remove(XDSStudy study) {
-		try {
-			studies.remove(study.getStudyUID());
-			recman.commit();
-		}
-		catch (Exception ex) {
-			logger.warn("Unable to remove the study", ex);
-		}
+	protected void write(String studyUID, XDSStudy study) throws Exception {
+		studies.put(studyUID, XDSStudyCodec.encode(study));
+		if (changed != null) changed.add(studyUID);
 	}
 
-	/**
-	 * Get an array of studies that are either OPEN or COMPLETE,
-	 * sorted on PatientID.
-	 * @return the sorted list of OPEN or COMPLETE studies, or
-	 * an empty array if an error occurs.
-	 */
-	public synchronized XDSStudy[] getActiveStudies() {
-		try {
-			XDSStudy study;
-			String key;
-			LinkedList<XDSStudy> list = new LinkedList<XDSStudy>();
-			FastIterator it = studies.keys();
-			while ( (key = (String)it.next()) != null ) {
-				study = (XDSStudy)studies.get(key);
-				XDSStudyStatus status = study.getStatus();
-				if (status.is(XDSStudyStatus.OPEN) || status.is(XDSStudyStatus.COMPLETE)) {
-					list.add( study );
-				}
-			}
-			XDSStudy[] array = new XDSStudy[list.size()];
-			array = list.toArray(array);
-			Arrays.sort(array);
-			return array;
-		}
-		catch (Exception ex) {
-			logger.warn("Unable to list the active studies", ex);
-			return new XDSStudy[0];
-		}
+	protected void delete(String studyUID) throws Exception {
+		studies.remove(studyUID);
+		if (changed != null) changed.add(studyUID);
 	}
 
 	/**
-	 * Get an array of studies that have the status QUEUED, INTRANSIT, SUCCESS or FAILED,
-	 * sorted on PatientID.
-	 * @return the sorted list of QUEUED, INTRANSIT, SUCCESS or FAILED studies, or
-	 * an empty array if an error occurs.
+	 * Compact the JDBM files, copying the live entries into a fresh
+	 * database and replacing the old files with it. Updates continue
+	 * during the copy; they are only held while the files are swapped.
+	 * Only the studies HTree is copied; it is the only named object
+	 * that the database has ever stored.
+	 * @return the number of bytes reclaimed, or -1 if the database
+	 * could not be compacted.
 	 */
-	public synchronized XDSStudy[] getSentStudies() {
+	public long compact() {
+		File base = new File(indexRoot, databaseName);
+		synchronized (persistLock) {
+			if (!isOpen() || (changed != null)) return -1;
+			changed = new HashSet<String>();
+		}
+		long before = JdbmCompactor.getSize(base);
+		RecordManager copy = null;
 		try {
-			XDSStudy study;
-			String key;
-			LinkedList<XDSStudy> list = new LinkedList<XDSStudy>();
-			FastIterator it = studies.keys();
-			while ( (key = (String)it.next()) != null ) {
-				study = (XDSStudy)studies.get(key);
-				XDSStudyStatus status = study.getStatus();
-				if (status.is(XDSStudyStatus.QUEUED)
-					|| status.is(XDSStudyStatus.INTRANSIT)
-						|| status.is(XDSStudyStatus.SUCCESS)
-							|| status.is(XDSStudyStatus.FAILED)) {
-					list.add( study );
+			copy = JdbmCompactor.createCompactRecordManager(base);
+			HTree copyStudies = JdbmCompactor.createHTree(copy, studiesHTreeName);
+			int count = 0;
+			for (XDSStudy study : getAllStudies()) {
+				copyStudies.put(study.getStudyUID(), XDSStudyCodec.encode(study));
+				if ((++count % 1000) == 0) copy.commit();
+			}
+			copy.commit();
+			synchronized (persistLock) {
+				if (!isOpen()) throw new Exception("The database was closed");
+				commit();
+				for (String studyUID : changed) {
+					XDSStudy study = get(studyUID);
+					if (study != null) copyStudies.put(studyUID, XDSStudyCodec.encode(study));
+					else if (copyStudies.get(studyUID) != null) copyStudies.remove(studyUID);
 				}
+				copy.commit();
+				copy.close();
+				copy = null;
+				changed = null;
+				recman.close();
+				recman = null;
+				studies = null;
+				JdbmCompactor.swap(base);
+				loadDatabase(indexRoot);
 			}
-			XDSStudy[] array = new XDSStudy[list.size()];
-			array = list.toArray(array);
-			Arrays.sort(array);
-			return array;
+			long reclaimed = before - JdbmCompactor.getSize(base);
+			lastCompactionTime = System.currentTimeMillis();
+			lastReclaimedBytes = reclaimed;
+			logger.info("Compacted the XDS studies database: "+count+" studies, "+reclaimed+" bytes reclaimed");
+			return reclaimed;
 		}
 		catch (Exception ex) {
-			logger.warn("Unable to list the sent studies", ex);
-			return new XDSStudy[0];
-		}
-	}
-
-	/**
-	 * Get an array of all the studies with a specified StudyDtatus,
-	 * sorted on PatientID.
-	 * @param studyStatus the status of the studies to be returned.
-	 * @return the sorted list of all studies, or
-	 * an empty array if an error occurs.
-	 */
-	public synchronized XDSStudy[] getStudies(XDSStudyStatus studyStatus) {
-		try {
-			XDSStudy study;
-			String key;
-			LinkedList<XDSStudy> list = new LinkedList<XDSStudy>();
-			FastIterator it = studies.keys();
-			while ( (key = (String)it.next()) != null ) {
-				study = (XDSStudy)studies.get(key);
-				XDSStudyStatus status = study.getStatus();
-				if (status.is(studyStatus)) {
-					list.add( study );
+			logger.warn("Unable to compact the XDS studies database", ex);
+			if (copy != null) {
+				try { copy.close(); }
+				catch (Exception ignore) { }
+			}
+			synchronized (persistLock) {
+				changed = null;
+				if (recman == null) {
+					JdbmCompactor.recover(base);
+					loadDatabase(indexRoot);
 				}
 			}
-			XDSStudy[] array = new XDSStudy[list.size()];
-			array = list.toArray(array);
-			Arrays.sort(array);
-			return array;
-		}
-		catch (Exception ex) {
-			logger.warn("Unable to list the studies with status "+studyStatus.toString(), ex);
-			return new XDSStudy[0];
+			return -1;
 		}
 	}
 
 	/**
-	 * Get the number of studies that are COMPLETE.
+	 * Get the time of the last compaction, or 0 if the database
+	 * has not been compacted since it was opened.
 	 */
-	public synchronized int getCompleteStudyCount() {
-		try {
-			XDSStudy study;
-			String key;
-			int count = 0;
-			FastIterator it = studies.keys();
-			while ( (key = (String)it.next()) != null ) {
-				study = (XDSStudy)studies.get(key);
-				XDSStudyStatus status = study.getStatus();
-				if (status.is(XDSStudyStatus.COMPLETE)) {
-					count++;
-				}
-			}
-			return count;
-		}
-		catch (Exception ex) {
-			logger.warn("Unable to count the studies with status COMPLETE", ex);
-			return 0;
-		}
+	public long getLastCompactionTime() {
+		return lastCompactionTime;
 	}
 
 	/**
-	 * Get the number of studies that are INTRANSIT.
+	 * Get the number of bytes reclaimed by the last compaction.
 	 */
-	public synchronized int getInTransitStudyCount() {
+	public long getLastReclaimedBytes() {
+		return lastReclaimedBytes;
+	}
+
+	protected void sync() throws Exception {
+		recman.commit();
+	}
+
+	protected void closeStore() throws Exception {
+		recman.commit();
+		recman.close();
+		recman = null;
+		studies = null;
+	}
+
+	protected boolean isOpen() {
+		return (recman != null);
+	}
+
+	//Load the in-memory table from the HTree.
+	private void loadTable() {
+		if (studies == null) return;
 		try {
-			XDSStudy study;
 			String key;
 			int count = 0;
 			FastIterator it = studies.keys();
 			while ( (key = (String)it.next()) != null ) {
-				study = (XDSStudy)studies.get(key);
-				XDSStudyStatus status = study.getStatus();
-				if (status.is(XDSStudyStatus.INTRANSIT)) {
+				//Records written before XDSStudyCodec are serialized XDSStudy objects.
+				Object value = studies.get(key);
+				XDSStudy study = null;
+				if (value instanceof byte[]) study = XDSStudyCodec.decode((byte[])value);
+				else if (value instanceof XDSStudy) study = (XDSStudy)value;
+				if (study != null) {
+					load(study);
 					count++;
 				}
 			}
-			return count;
-		}
-		catch (Exception ex) {
-			logger.warn("Unable to count the studies with status INTRANSIT", ex);
-			return 0;
-		}
-	}
-
-	/**
-	 * Get the total number of studies that are in the database.
-	 */
-	public synchronized int getStudyCount() {
-		try {
-			String key;
-			int count = 0;
-			FastIterator it = studies.keys();
-			while ( (key = (String)it.next()) != null ) count++;
-			return count;
+			logger.info("Loaded "+count+" studies from the XDS studies database");
 		}
 		catch (Exception ex) {
-			logger.warn("Unable to count the studies", ex);
-			return 0;
-		}
-	}
-
-	/**
-	 * Commit changes and close the index.
-	 * No errors are reported and no operations
-	 * are available after this call.
-	 */
-	public synchronized void close() {
-		if (recman != null) {
-			try {
-				recman.commit();
-				recman.close();
-				recman = null;
-				studies = null;
-			}
-			catch (Exception ignore) { }
+			logger.warn("Unable to load the study table from the XDS studies database.", ex);
 		}
 	}
 
-	/**
-	 * Indicate whether the database is closed.
-	 * return true if the database is closed; false otherwise.
-	 */
-	public synchronized boolean isClosed() {
-		return (recman == null);
-	}
-
 	//Load the database from the JDBM files, creating the JDBM files if necessary.
 	private void loadDatabase(File dir) {
 		if (recman == null) {
@@ -280,6 +220,7 @@ public class XDSDatabase {
 			}
 			catch (Exception ex) {
 				logger.warn("Unable to instantiate the XDS studies database.", ex);
+				recman = null;
 				studies = null;
 			}
 		}
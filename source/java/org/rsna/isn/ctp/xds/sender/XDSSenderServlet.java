@@ -8,6 +8,7 @@
 package org.rsna.isn.ctp.xds.sender;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.objects.ZipObject;
@@ -75,7 +76,7 @@ public class XDSSenderServlet extends Servlet {
 				}
 				else {
 					//This is a request for the main servlet page
-					res.write( getPage() );
+					res.write( getPage(req.userHasRole("admin")) );
 					res.setContentType("html");
 				}
 				res.disableCaching();
@@ -99,15 +100,42 @@ public class XDSSenderServlet extends Servlet {
 		//Only accept connections from users with the export privilege
 		if (!req.userHasRole("export")) { res.redirect("/"); return; }
 
-		String key = req.getParameter("key");
-		if ((key != null) && !key.trim().equals("")) {
-			boolean delete = key.equals("0");
+		//An admin can compact the study database without stopping the pipeline.
+		if (!req.getParameter("compact", "").equals("") && req.userHasRole("admin")) {
+			XDSStudyCache.getInstance(context).compactIndex();
+			res.redirect("/" + context);
+			return;
+		}
+
+		//The Complete Now button completes the selected OPEN studies as soon
+		//as they have been quiet for the safety period.
+		if (!req.getParameter("complete", "").equals("")) {
+			List<String> studies = req.getParameterValues("study");
+			if (studies != null) {
+				XDSStudyCache cache = XDSStudyCache.getInstance(context);
+				for (String studyUID : studies) cache.requestCompletion(studyUID);
+			}
+			res.redirect("/" + context);
+			return;
+		}
+
+		//The key parameter may have several values to send the selected
+		//studies to several destinations in a single transmission.
+		List<String> keys = new ArrayList<String>();
+		List<String> values = req.getParameterValues("key");
+		if (values != null) {
+			for (String key : values) {
+				if ((key != null) && !key.trim().equals("")) keys.add(key.trim());
+			}
+		}
+		if (!keys.isEmpty()) {
+			boolean delete = keys.contains("0");
 			List<String> studies = req.getParameterValues("study");
 			if (studies != null) {
 				XDSStudyCache cache = XDSStudyCache.getInstance(context);
 				for (String studyUID : studies) {
 					if (delete) cache.deleteStudy(studyUID);
-					else cache.sendStudy(key, studyUID);
+					else cache.sendStudy(keys, studyUID);
 				}
 			}
 		}
@@ -125,7 +153,7 @@ public class XDSSenderServlet extends Servlet {
 		catch (Exception ex) { return "Unable to create the sender page."; }
 	}
 
-	private String getPage() {
+	private String getPage(boolean admin) {
 		try {
 			XDSStudyCache cache = XDSStudyCache.getInstance(context);
 			Document activeStudiesDoc = cache.getActiveStudiesXML();
@@ -136,7 +164,8 @@ public class XDSSenderServlet extends Servlet {
 			Object[] params = new Object[] {
 				"context", context,
 				"sentStudies", sentStudiesDoc,
-				"destinations", destinationsDoc
+				"destinations", destinationsDoc,
+				"admin", (admin ? "yes" : "no")
 			};
 			return XmlUtil.getTransformedText( activeStudiesDoc, xsl, params );
 		}
@@ -8,9 +8,17 @@
 package org.rsna.isn.ctp.xds.sender;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ArrayList;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.objects.*;
 import org.rsna.util.XmlUtil;
@@ -27,8 +35,10 @@ public class XDSStudy implements Serializable, Comparable<XDSStudy> {
 	static final Logger logger = Logger.getLogger(XDSStudy.class);
 
 	String studyUID;
-	File studyDir;
+	String dirname;
+	transient File studyDir;
 	int size;
+	long bytes;
 	int objectsSent;
 	long lastModifiedTime;
 	XDSStudyStatus status;
@@ -40,15 +50,27 @@ public class XDSStudy implements Serializable, Comparable<XDSStudy> {
 	String modality = "";
 	String bodypart = "";
 	String studyDescription = "";
+	LinkedHashSet<String> objects = new LinkedHashSet<String>();
+	LinkedHashMap<String,Transmission> transmissions = null;
+	int rejected = 0;
+	String rejection = null;
+	LinkedHashMap<String,Series> series = null;
+
+	//The digests of the objects, loaded from the manifest when needed
+	transient HashMap<String,String> digests = null;
+
+	//Construct an empty XDSStudy for XDSStudyCodec to fill in.
+	XDSStudy() { }
 
 	/**
 	 * Construct an XDSStudy.
 	 * @param fo the object to be used to index the study
-	 * @param studyDir the directory in which the study's objects are stored
+	 * @param layout the layout of the cache in which the study's objects are stored
 	 */
-	public XDSStudy(FileObject fo, File studyDir) {
+	public XDSStudy(FileObject fo, CacheLayout layout) {
 		this.studyUID = fo.getStudyUID();
-		this.studyDir = studyDir;
+		this.dirname = CacheLayout.getDirname(studyUID);
+		this.studyDir = layout.getStudyDir(dirname);
 		this.size = 0;
 		this.objectsSent = 0;
 		this.lastModifiedTime = 0;
@@ -83,6 +105,34 @@ public class XDSStudy implements Serializable, Comparable<XDSStudy> {
 		return lastModifiedTime;
 	}
 
+	/**
+	 * Get the number of objects in the study
+	 */
+	public synchronized int getSize() {
+		return size;
+	}
+
+	/**
+	 * Get the number of bytes occupied by the study's objects in the cache
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Set the number of bytes occupied by the study's objects in the cache
+	 */
+	public synchronized void setBytes(long bytes) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Add a change in the number of bytes occupied by the study's objects
+	 */
+	public synchronized void addBytes(long delta) {
+		bytes += delta;
+	}
+
 	/**
 	 * Update the size
 	 */
@@ -90,6 +140,214 @@ public class XDSStudy implements Serializable, Comparable<XDSStudy> {
 		this.size = size;
 	}
 
+	/**
+	 * Record an object stored in the study directory, updating the size.
+	 * @param filename the name of the file in the study directory.
+	 * @return true if the object is new to the study; false if it
+	 * replaces an object that was already stored.
+	 */
+	public synchronized boolean addObject(String filename) {
+		boolean added = getObjects().add(filename);
+		size = objects.size();
+		return added;
+	}
+
+	/**
+	 * Record an object of a series of a study that is being streamed,
+	 * reopening the series if it has already been sent.
+	 * @param seriesUID the SeriesInstanceUID of the object.
+	 * @param filename the name of the file in the study directory.
+	 * @param added true if the object is new to the study.
+	 */
+	public synchronized void addSeriesObject(String seriesUID, String filename, boolean added) {
+		if (series == null) series = new LinkedHashMap<String,Series>();
+		Series s = series.get(seriesUID);
+		if (s == null) {
+			s = new Series(seriesUID);
+			series.put(seriesUID, s);
+		}
+		s.pending.add(filename);
+		if (added) s.size++;
+		if (!s.status.is(XDSStudyStatus.INTRANSIT)) s.status = XDSStudyStatus.OPEN;
+		s.lastModifiedTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Determine whether the objects of the study have been tracked by series.
+	 */
+	public synchronized boolean isStreamed() {
+		return (series != null);
+	}
+
+	/**
+	 * Get the time at which the last object of a series was stored.
+	 * @return the time, or 0 if the series is not tracked.
+	 */
+	public synchronized long getSeriesLastModifiedTime(String seriesUID) {
+		Series s = (series != null) ? series.get(seriesUID) : null;
+		return (s != null) ? s.lastModifiedTime : 0;
+	}
+
+	/**
+	 * Start the transmission of the unsent objects of an OPEN series,
+	 * changing its status to INTRANSIT.
+	 * @return the files to be sent, or null if the series is not OPEN
+	 * or has no unsent objects.
+	 */
+	public synchronized List<File> startSeries(String seriesUID) {
+		Series s = (series != null) ? series.get(seriesUID) : null;
+		if ((s == null) || !s.status.is(XDSStudyStatus.OPEN) || s.pending.isEmpty()) return null;
+		s.status = XDSStudyStatus.INTRANSIT;
+		List<File> list = new ArrayList<File>();
+		for (String filename : s.pending) list.add(new File(studyDir, filename));
+		return list;
+	}
+
+	/**
+	 * Record the end of the transmission of a series. If objects arrived
+	 * during the transmission, the series is OPEN again.
+	 * @param seriesUID the SeriesInstanceUID.
+	 * @param files the files that were submitted.
+	 * @param ok true if the submission succeeded.
+	 */
+	public synchronized void finishSeries(String seriesUID, List<File> files, boolean ok) {
+		Series s = (series != null) ? series.get(seriesUID) : null;
+		if (s == null) return;
+		if (ok) {
+			for (File file : files) {
+				if (s.pending.remove(file.getName())) s.objectsSent++;
+			}
+		}
+		if (s.pending.isEmpty()) s.status = XDSStudyStatus.SUCCESS;
+		else s.status = ok ? XDSStudyStatus.OPEN : XDSStudyStatus.FAILED;
+	}
+
+	/**
+	 * Get the files of the study that have not been sent in a series
+	 * transmission.
+	 */
+	public synchronized List<File> getUnsentFiles() {
+		List<File> list = new ArrayList<File>();
+		if (series != null) {
+			for (Series s : series.values()) {
+				for (String filename : s.pending) list.add(new File(studyDir, filename));
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Record that the final transmission of a streamed study has sent
+	 * objects that were not sent in series transmissions.
+	 * @param files the files that were submitted.
+	 */
+	public synchronized void finishUnsentFiles(List<File> files) {
+		if (series == null) return;
+		HashSet<String> sent = new HashSet<String>();
+		for (File file : files) sent.add(file.getName());
+		for (Series s : series.values()) {
+			Iterator<String> it = s.pending.iterator();
+			while (it.hasNext()) {
+				if (sent.contains(it.next())) {
+					it.remove();
+					s.objectsSent++;
+				}
+			}
+			if (s.pending.isEmpty()) s.status = XDSStudyStatus.SUCCESS;
+		}
+	}
+
+	/**
+	 * Get the series that have unsent objects, reopening any series whose
+	 * transmission was interrupted when the stage stopped.
+	 */
+	public synchronized List<String> getUnsentSeries() {
+		List<String> list = new ArrayList<String>();
+		if (series != null) {
+			for (Series s : series.values()) {
+				if (s.status.is(XDSStudyStatus.INTRANSIT)) s.status = XDSStudyStatus.OPEN;
+				if (!s.pending.isEmpty()) list.add(s.seriesUID);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Get the number of objects of the study that have been sent in
+	 * series transmissions.
+	 */
+	public synchronized int getSeriesObjectsSent() {
+		int n = 0;
+		if (series != null) {
+			for (Series s : series.values()) n += s.objectsSent;
+		}
+		return n;
+	}
+
+	/**
+	 * Record objects of the study that were rejected at ingest.
+	 * @param count the number of objects rejected.
+	 * @param reason the reason for the last rejection.
+	 */
+	public synchronized void addRejected(int count, String reason) {
+		rejected += count;
+		rejection = reason;
+	}
+
+	/**
+	 * Get the number of objects of the study that were rejected at ingest.
+	 */
+	public synchronized int getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * Get the reason for the last rejection of an object of the study,
+	 * or null if no object has been rejected.
+	 */
+	public synchronized String getRejection() {
+		return rejection;
+	}
+
+	/**
+	 * Determine whether an object is stored in the study directory.
+	 * @param filename the name of the file in the study directory.
+	 */
+	public synchronized boolean hasObject(String filename) {
+		return getObjects().contains(filename);
+	}
+
+	/**
+	 * Determine whether the digests of the objects have been loaded.
+	 */
+	public synchronized boolean hasDigests() {
+		return (digests != null);
+	}
+
+	/**
+	 * Set the digests of the objects.
+	 * @param digests a map from filename to hex SHA-1 digest.
+	 */
+	public synchronized void setDigests(HashMap<String,String> digests) {
+		this.digests = digests;
+	}
+
+	/**
+	 * Get the digest of an object.
+	 * @param filename the name of the file in the study directory.
+	 * @return the hex SHA-1 digest, or null if it is not known.
+	 */
+	public synchronized String getDigest(String filename) {
+		return (digests != null) ? digests.get(filename) : null;
+	}
+
+	/**
+	 * Record the digest of an object, if the digests have been loaded.
+	 */
+	public synchronized void setDigest(String filename, String digest) {
+		if (digests != null) digests.put(filename, digest);
+	}
+
 	/**
 	 * Update the number of objects sent
 	 */
@@ -110,13 +368,53 @@ public class XDSStudy implements Serializable, Comparable<XDSStudy> {
 		return studyDir;
 	}
 
+	/**
+	 * Get the name of the study's directory.
+	 */
+	public synchronized String getDirname() {
+		return dirname;
+	}
+
+	/**
+	 * Find the study's directory in the cache. The directory is not stored
+	 * in the database; it is resolved through the cache's layout when the
+	 * study is loaded.
+	 * @param layout the layout of the cache.
+	 */
+	public synchronized void resolve(CacheLayout layout) {
+		if (dirname == null) dirname = CacheLayout.getDirname(studyUID);
+		studyDir = layout.locate(dirname);
+	}
+
+	/**
+	 * Record that the study's directory has been moved.
+	 */
+	public synchronized void setDirectory(File studyDir) {
+		this.studyDir = studyDir;
+	}
+
 	public synchronized List<File> getFiles() {
-		File[] files = studyDir.listFiles();
 		LinkedList<File> list = new LinkedList<File>();
-		for (File file : files) list.add(file);
+		for (String filename : getObjects()) list.add(new File(studyDir, filename));
 		return list;
 	}
 
+	//Get the set of object filenames. Studies stored before the list was
+	//maintained do not have one, so it is built from the directory once.
+	private LinkedHashSet<String> getObjects() {
+		if (objects == null) {
+			objects = new LinkedHashSet<String>();
+			File[] files = studyDir.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					//Skip the manifest and any temporary files
+					if (!file.getName().startsWith(".")) objects.add(file.getName());
+				}
+			}
+		}
+		return objects;
+	}
+
 	public synchronized String getStudyUID() {
 		return studyUID;
 	}
@@ -172,6 +470,79 @@ public class XDSStudy implements Serializable, Comparable<XDSStudy> {
 		return destinationName;
 	}
 
+	/**
+	 * Start a new transmission of the study to a set of destinations,
+	 * setting the status of each destination to QUEUED. The first
+	 * destination becomes the study's destination, and the study's
+	 * destinationName lists the names of all the destinations.
+	 * @param keys the destination keys.
+	 * @param names the names of the destinations, in the same order.
+	 */
+	public synchronized void setDestinations(List<String> keys, List<String> names) {
+		transmissions = new LinkedHashMap<String,Transmission>();
+		StringBuffer sb = new StringBuffer();
+		for (int i=0; i<keys.size(); i++) {
+			Transmission t = new Transmission(keys.get(i), names.get(i));
+			transmissions.put(t.key, t);
+			if (sb.length() > 0) sb.append(", ");
+			sb.append(t.name);
+		}
+		destination = keys.isEmpty() ? null : keys.get(0);
+		destinationName = sb.toString();
+	}
+
+	/**
+	 * Get the keys of the destinations of the current transmission.
+	 */
+	public synchronized List<String> getDestinationKeys() {
+		List<String> keys = new ArrayList<String>();
+		if (transmissions != null) keys.addAll(transmissions.keySet());
+		else if (destination != null) keys.add(destination);
+		return keys;
+	}
+
+	/**
+	 * Get the name of a destination of the current transmission.
+	 */
+	public synchronized String getDestinationName(String key) {
+		Transmission t = (transmissions != null) ? transmissions.get(key) : null;
+		return (t != null) ? t.name : destinationName;
+	}
+
+	/**
+	 * Get the status of the transmission to one destination.
+	 * @return the status, or the study's status if the destination has no
+	 * separate status.
+	 */
+	public synchronized XDSStudyStatus getDestinationStatus(String key) {
+		Transmission t = (transmissions != null) ? transmissions.get(key) : null;
+		return (t != null) ? t.status : status;
+	}
+
+	/**
+	 * Set the status of the transmission to one destination.
+	 */
+	public synchronized void setDestinationStatus(String key, XDSStudyStatus status) {
+		Transmission t = (transmissions != null) ? transmissions.get(key) : null;
+		if (t != null) t.status = status;
+	}
+
+	/**
+	 * Set the number of objects sent to one destination. The study's
+	 * objectsSent is the smallest number sent to any of its destinations.
+	 */
+	public synchronized void setDestinationObjectsSent(String key, int value) {
+		Transmission t = (transmissions != null) ? transmissions.get(key) : null;
+		if (t == null) {
+			objectsSent = value;
+			return;
+		}
+		t.objectsSent = value;
+		int min = Integer.MAX_VALUE;
+		for (Transmission x : transmissions.values()) min = Math.min(min, x.objectsSent);
+		objectsSent = min;
+	}
+
 	public synchronized XDSStudyStatus getStatus() {
 		return status;
 	}
@@ -206,6 +577,33 @@ public class XDSStudy implements Serializable, Comparable<XDSStudy> {
 
 			root.setAttribute("destination", destination);
 			root.setAttribute("destinationName", destinationName);
+			if (rejected > 0) {
+				root.setAttribute("rejected", Integer.toString(rejected));
+				root.setAttribute("rejection", (rejection != null) ? rejection : "");
+			}
+			if (series != null) {
+				int sent = 0;
+				for (Series s : series.values()) {
+					if (s.status.is(XDSStudyStatus.SUCCESS)) sent++;
+					Element se = doc.createElement("Series");
+					se.setAttribute("seriesUID", s.seriesUID);
+					se.setAttribute("size", Integer.toString(s.size));
+					se.setAttribute("objectsSent", Integer.toString(s.objectsSent));
+					se.setAttribute("status", s.status.toString());
+					root.appendChild(se);
+				}
+				root.setAttribute("seriesSent", sent + "/" + series.size());
+			}
+			if ((transmissions != null) && (transmissions.size() > 1)) {
+				for (Transmission t : transmissions.values()) {
+					Element de = doc.createElement("Destination");
+					de.setAttribute("key", t.key);
+					de.setAttribute("name", t.name);
+					de.setAttribute("status", t.status.toString());
+					de.setAttribute("objectsSent", Integer.toString(t.objectsSent));
+					root.appendChild(de);
+				}
+			}
 			return doc;
 		}
 		catch (Exception ex) {
@@ -214,6 +612,50 @@ public class XDSStudy implements Serializable, Comparable<XDSStudy> {
 		}
 	}
 
+	//Serialize the study while holding its lock, so a database write
+	//never sees a study that another thread is partway through updating.
+	private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+	}
+
+	/**
+	 * The state of the transmission of the study to one destination.
+	 */
+	static class Transmission implements Serializable {
+
+		static final long serialVersionUID = 1L;
+
+		String key;
+		String name;
+		XDSStudyStatus status = XDSStudyStatus.QUEUED;
+		int objectsSent = 0;
+
+		Transmission(String key, String name) {
+			this.key = key;
+			this.name = name;
+		}
+	}
+
+	/**
+	 * The state of the streaming of one series of the study. The pending
+	 * objects are those that have not yet been sent.
+	 */
+	static class Series implements Serializable {
+
+		static final long serialVersionUID = 1L;
+
+		String seriesUID;
+		int size = 0;
+		int objectsSent = 0;
+		long lastModifiedTime = 0;
+		XDSStudyStatus status = XDSStudyStatus.OPEN;
+		LinkedHashSet<String> pending = new LinkedHashSet<String>();
+
+		Series(String seriesUID) {
+			this.seriesUID = seriesUID;
+		}
+	}
+
 	public int compareTo(XDSStudy s) {
 		return getPatientID().compareTo(s.getPatientID());
 	}
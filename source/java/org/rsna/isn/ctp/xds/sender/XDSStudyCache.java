@@ -8,19 +8,36 @@
 package org.rsna.isn.ctp.xds.sender;
 
 import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ExecutorService;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import org.apache.log4j.Logger;
+import org.dcm4che2.data.Tag;
 import org.rsna.ctp.Configuration;
 import org.rsna.ctp.objects.*;
 import org.rsna.ctp.pipeline.Status;
 import org.rsna.ctp.stdplugins.AuditLog;
 import org.rsna.util.FileUtil;
+import org.rsna.util.StringUtil;
 import org.rsna.util.XmlUtil;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.rsna.isn.ctp.xds.sender.dicom.StudyManifest;
 import org.rsna.isn.ctp.xds.sender.event.*;
 
 /**
@@ -33,14 +50,85 @@ public class XDSStudyCache {
 	private static Hashtable<String,XDSStudyCache> caches = new Hashtable<String,XDSStudyCache>();
 	private Element element;
 	private File cacheRoot;
+	private CacheLayout layout;
 	private File indexRoot;
 	private String context;
-	private XDSDatabase database;
-	private ExecutorService execSvc;
+	private StudyIndex database;
+	private CacheWriter writer;
+	private SendScheduler scheduler;
+	private SendJournal journal;
+	private String recoveryPolicy;
+
+	//The StudyInstanceUIDs of the studies being transmitted
+	private final Set<String> transmitting = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+	private volatile boolean draining = false;
+
+	//The disk budget of the cache
+	private final AtomicLong cacheBytes = new AtomicLong();
+	private final Object spaceLock = new Object();
+	private long highWatermark = 0;
+	private long lowWatermark = 0;
+	private volatile boolean blocked = false;
+	private StudyReaper reaper;
+
+	//The memory tier for small studies, or null if it is not enabled
+	private MemoryTier memory = null;
+	private SpillThread spiller = null;
+
+	//The thread that compacts the database, if one has been started
+	private CompactionThread compactor = null;
+
+	//The reconciliation of the cache directories with the database
+	private ReconcilerThread reconciler = null;
+	private final AtomicLong orphansReclaimed = new AtomicLong();
+	private final AtomicLong studiesReindexed = new AtomicLong();
+
+	//The counters of objects that were already cached
+	private final AtomicLong dedupHits = new AtomicLong();
+	private final AtomicLong dedupMisses = new AtomicLong();
+
+	//The objects rejected at ingest, and the rejections of the
+	//studies that had no accepted objects when they were rejected
+	private final AtomicLong rejectedObjects = new AtomicLong();
+	private final ConcurrentHashMap<String,Rejections> pendingRejections = new ConcurrentHashMap<String,Rejections>();
+	private volatile boolean closed = false;
+
+	static final String RESEND = "resend";
+	static final String FAIL = "fail";
 	private AuditLog auditLog = null;
 	private String auditLogID = null;
 
-	final int maxThreads = 4;
+	//The locks that serialize the changes to each study
+	private final Object[] studyLocks = new Object[64];
+
+	//The completion deadlines of the OPEN studies, and the
+	//StudyInstanceUIDs of the studies that have a deadline queued
+	private final DelayQueue<Deadline> deadlines = new DelayQueue<Deadline>();
+	private final Set<String> scheduled = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+	private CompletionThread completion = null;
+
+	//The detectors that complete studies before their quiet periods expire, the
+	//safety period that applies to the studies they detect, the names of the
+	//detectors that detected the OPEN studies, and the wait for each detector
+	private final List<CompletionDetector> detectors = new ArrayList<CompletionDetector>();
+	private long safetyPeriod = 15 * 1000;
+	private final ConcurrentHashMap<String,String> detected = new ConcurrentHashMap<String,String>();
+	private final LinkedHashMap<String,long[]> waits = new LinkedHashMap<String,long[]>();
+	static final String QUIET_PERIOD = "quiet period";
+	static final String TRIGGER = "trigger";
+
+	//The streaming of OPEN studies series by series: the quiet period after
+	//which a series is sent, the deadlines of the series, the keys of the
+	//series that have a deadline queued, and the locks that serialize the
+	//transmissions of each study
+	private boolean streaming = false;
+	private long seriesQuietPeriod = 30 * 1000;
+	private final DelayQueue<Deadline> seriesDeadlines = new DelayQueue<Deadline>();
+	private final Set<String> seriesScheduled = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+	private final Object[] sendLocks = new Object[64];
+	private SeriesThread streamer = null;
+	private final AtomicLong seriesSent = new AtomicLong();
+	private final AtomicLong seriesFailed = new AtomicLong();
 
 	/**
 	 * Construct an XDSStudyCache.
@@ -50,13 +138,455 @@ public class XDSStudyCache {
 	protected XDSStudyCache(String context, File root, Element element) {
 		this.element = element;
 		this.context = context;
+		for (int i=0; i<studyLocks.length; i++) studyLocks[i] = new Object();
+		for (int i=0; i<sendLocks.length; i++) sendLocks[i] = new Object();
 		this.cacheRoot = new File(root, "cache");
 		cacheRoot.mkdirs();
+		//The directory layout is selected by the cacheLayout attribute (flat or hashed).
+		this.layout = new CacheLayout(cacheRoot, element.getAttribute("cacheLayout"));
 		this.indexRoot = new File(root, "index");
 		indexRoot.mkdirs();
-		this.database = new XDSDatabase(indexRoot);
-		this.execSvc = Executors.newFixedThreadPool( maxThreads );
+		//The durability attribute (none, object, or batch) determines when the
+		//objects are forced to the disk. In the batch mode, they are forced every
+		//durabilityBatchCount objects, every durabilityBatchInterval ms, and
+		//before every commit of the database.
+		int batchCount = StringUtil.getInt(element.getAttribute("durabilityBatchCount"));
+		if (batchCount <= 0) batchCount = 100;
+		long batchInterval = StringUtil.getLong(element.getAttribute("durabilityBatchInterval"));
+		if (batchInterval <= 0) batchInterval = 1000;
+		this.writer = new CacheWriter(element.getAttribute("ingestMode"),
+									  element.getAttribute("durability"),
+									  batchCount, batchInterval);
+		//Group commit is enabled by the commitInterval attribute (in ms).
+		//Every commit forces the pending objects in the batch mode, so if
+		//every update were committed, every object would be forced on its own.
+		//In the batch mode, the interval defaults to the batch interval.
+		long commitInterval = StringUtil.getLong(element.getAttribute("commitInterval"));
+		if ((commitInterval <= 0) && writer.getDurability().equals(CacheWriter.BATCH)) {
+			commitInterval = batchInterval;
+		}
+		int commitCount = StringUtil.getInt(element.getAttribute("commitCount"));
+		if (commitCount <= 0) commitCount = 100;
+		//The storage engine is selected by the indexType attribute (jdbm or log).
+		String indexType = element.getAttribute("indexType").trim().toLowerCase();
+		if (indexType.equals("log"))
+			this.database = new LogStudyIndex(indexRoot, commitInterval, commitCount);
+		else
+			this.database = new XDSDatabase(indexRoot, commitInterval, commitCount);
+		for (XDSStudy study : database.getAllStudies()) study.resolve(layout);
+		database.setCommitBarrier(new Runnable() {
+			public void run() { writer.flush(); }
+		});
+		this.scheduler = SendScheduler.getInstance();
+		scheduler.configure(context, element);
+		this.journal = new SendJournal(indexRoot);
+		//The recoveryPolicy attribute determines what is done with studies
+		//that were INTRANSIT when the stage stopped (resend or fail).
+		recoveryPolicy = element.getAttribute("recoveryPolicy").trim().toLowerCase();
+		if (!recoveryPolicy.equals(FAIL)) recoveryPolicy = RESEND;
 		this.auditLogID = element.getAttribute("auditLogID").trim();
+
+		//The watermarks are specified in MB. Above the high watermark,
+		//storage is blocked and transmitted studies are evicted until
+		//the cache is below the low watermark.
+		highWatermark = StringUtil.getLong(element.getAttribute("highWatermark")) * 1024 * 1024;
+		lowWatermark = StringUtil.getLong(element.getAttribute("lowWatermark")) * 1024 * 1024;
+		if ((lowWatermark <= 0) || (lowWatermark > highWatermark)) lowWatermark = highWatermark * 9 / 10;
+		countBytes();
+
+		//The reaper deletes the directories of removed studies in the background,
+		//at the rates specified by the reaperFilesPerSecond and reaperMBPerSecond
+		//attributes (0 means no limit).
+		String rate = element.getAttribute("reaperMBPerSecond").trim();
+		double mbPerSecond = 0;
+		try { if (!rate.equals("")) mbPerSecond = Double.parseDouble(rate); }
+		catch (Exception ex) { logger.warn("Invalid reaperMBPerSecond: "+rate); }
+		this.reaper = new StudyReaper(context + "-reaper",
+									  new File(root, "reaper"),
+									  cacheBytes,
+									  StringUtil.getInt(element.getAttribute("reaperFilesPerSecond")),
+									  mbPerSecond);
+		reaper.start();
+		new MigrationThread().start();
+
+		//The completionDetectors attribute lists the detectors (by name or class
+		//name) that complete a study when it has been quiet for the safetyPeriod
+		//(in seconds) rather than for minAge.
+		for (String name : element.getAttribute("completionDetectors").trim().split("[\\s,]+")) {
+			CompletionDetector detector = getCompletionDetector(name);
+			if (detector != null) detectors.add(detector);
+		}
+		String sp = element.getAttribute("safetyPeriod").trim();
+		if (!sp.equals("")) safetyPeriod = Math.max( StringUtil.getLong(sp), 0 ) * 1000;
+
+		//The streaming attribute enables the transmission of each series of an
+		//OPEN study when it has been quiet for seriesQuietPeriod seconds.
+		streaming = element.getAttribute("streaming").trim().equals("yes");
+		String sqp = element.getAttribute("seriesQuietPeriod").trim();
+		if (!sqp.equals("")) seriesQuietPeriod = Math.max( StringUtil.getLong(sqp), 1 ) * 1000;
+
+		//The memory tier is enabled by the memoryBudget attribute (in MB). Studies
+		//smaller than memoryStudyThreshold (in MB) are held in memory, and they are
+		//spilled to the disk when they have been held for memoryCheckpointAge seconds.
+		//Objects held in memory are lost in a crash, so the memory tier is only
+		//enabled when the durability mode is none.
+		long memoryBudget = StringUtil.getLong(element.getAttribute("memoryBudget")) * 1024 * 1024;
+		if ((memoryBudget > 0) && !writer.getDurability().equals(CacheWriter.NONE)) {
+			logger.warn(context+": the memory tier is disabled because the durability mode is "+writer.getDurability());
+		}
+		else if (memoryBudget > 0) {
+			long threshold = StringUtil.getLong(element.getAttribute("memoryStudyThreshold")) * 1024 * 1024;
+			if (threshold <= 0) threshold = 16 * 1024 * 1024;
+			long checkpointAge = StringUtil.getLong(element.getAttribute("memoryCheckpointAge")) * 1000;
+			if (checkpointAge <= 0) checkpointAge = 60 * 1000;
+			memory = new MemoryTier(memoryBudget, threshold);
+			spiller = new SpillThread(checkpointAge);
+			spiller.start();
+		}
+
+		//The reconciler is enabled by the reconcileInterval attribute (in minutes).
+		long reconcileInterval = StringUtil.getLong(element.getAttribute("reconcileInterval")) * 60 * 1000;
+		if (reconcileInterval > 0) {
+			long gracePeriod = StringUtil.getLong(element.getAttribute("orphanGracePeriod")) * 60 * 1000;
+			if (gracePeriod <= 0) gracePeriod = 24 * 60 * 60 * 1000;
+			int dirsPerSecond = StringUtil.getInt(element.getAttribute("reconcileDirsPerSecond"));
+			if (dirsPerSecond <= 0) dirsPerSecond = 10;
+			reconciler = new ReconcilerThread(reconcileInterval, gracePeriod, dirsPerSecond);
+			reconciler.start();
+		}
+	}
+
+	//The thread that walks the study directories of the cache, one directory at
+	//a time at a limited rate, looking for directories that have no study in the
+	//database. A directory that has not been modified within the grace period is
+	//re-indexed if it has a manifest and contains an object of the study named by
+	//the directory (as when the stage stopped between storing the first object of
+	//a study and recording the study in the database); otherwise it is handed to
+	//the reaper. Note that a re-indexed study is indexed with the values of the
+	//cached object, which may have been anonymized.
+	class ReconcilerThread extends Thread {
+		final long interval;
+		final long gracePeriod;
+		final long delay;
+		HashSet<String> dirnames;
+		public ReconcilerThread(long interval, long gracePeriod, int dirsPerSecond) {
+			super(context + "-reconciler");
+			setDaemon(true);
+			setPriority(Thread.MIN_PRIORITY);
+			this.interval = interval;
+			this.gracePeriod = gracePeriod;
+			this.delay = Math.max(1, 1000 / dirsPerSecond);
+		}
+		public void run() {
+			try {
+				while (!draining) {
+					sleep(interval);
+					dirnames = new HashSet<String>();
+					for (XDSStudy study : database.getAllStudies()) dirnames.add(study.getDirname());
+					walk(cacheRoot, 0);
+					dirnames = null;
+				}
+			}
+			catch (InterruptedException ex) { }
+		}
+		//Walk the directories of both layouts: the study directories are
+		//either in the root or two levels of hash directories below it.
+		private void walk(File dir, int level) throws InterruptedException {
+			String[] names = dir.list();
+			sleep(delay);
+			if (names == null) return;
+			for (String name : names) {
+				if (draining) throw new InterruptedException();
+				File file = new File(dir, name);
+				if ((level < 2) && isHashDirectory(name)) walk(file, level + 1);
+				else if ((level == 0) || (level == 2)) check(file);
+			}
+		}
+		private boolean isHashDirectory(String name) {
+			return name.matches("[0-9a-f]{2}");
+		}
+		private void check(File dir) throws InterruptedException {
+			if (dirnames.contains(dir.getName()) || !dir.isDirectory()) return;
+			File[] files = dir.listFiles();
+			sleep(delay);
+			if (files == null) return;
+			long lastModified = dir.lastModified();
+			for (File file : files) lastModified = Math.max(lastModified, file.lastModified());
+			if ((System.currentTimeMillis() - lastModified) < gracePeriod) return;
+			reconcile(dir, files);
+		}
+	}
+
+	//The thread that spills the studies in the memory tier to the disk when
+	//they reach the checkpoint age, and spills the oldest studies when the
+	//tier is more than three quarters full, so there is room for new studies.
+	class SpillThread extends Thread {
+		final long checkpointAge;
+		public SpillThread(long checkpointAge) {
+			super(context + "-spill");
+			setDaemon(true);
+			this.checkpointAge = checkpointAge;
+		}
+		public void run() {
+			while (!isInterrupted()) {
+				try { sleep(Math.min(checkpointAge, 1000)); }
+				catch (InterruptedException ex) { return; }
+				long now = System.currentTimeMillis();
+				for (MemoryTier.Held held : memory.getStudies()) {
+					boolean pressure = (memory.getUsedBytes() > (memory.getBudget() * 3 / 4));
+					if (!pressure && ((now - held.created) < checkpointAge)) break;
+					synchronized (getStudyLock(held.studyUID)) {
+						memory.spill(held.studyDir, writer);
+					}
+				}
+			}
+		}
+	}
+
+	//Spill all the studies in the memory tier to the disk.
+	private void spillAll() {
+		if (memory == null) return;
+		if (spiller != null) {
+			spiller.interrupt();
+			spiller = null;
+		}
+		for (MemoryTier.Held held : memory.getStudies()) {
+			synchronized (getStudyLock(held.studyUID)) {
+				memory.spill(held.studyDir, writer);
+			}
+		}
+		memory.close();
+	}
+
+	/**
+	 * Get HTML table rows displaying the state of the memory tier,
+	 * or an empty string if the memory tier is not enabled.
+	 */
+	public String getMemoryTierHTML() {
+		return (memory != null) ? memory.getStatusHTML() : "";
+	}
+
+	//Get the length of an object, whether it is in the memory tier or on the disk.
+	private long getLength(File file) {
+		byte[] data = (memory != null) ? memory.get(file) : null;
+		return (data != null) ? data.length : file.length();
+	}
+
+	//Determine whether an object is stored, in the memory tier or on the disk.
+	private boolean isStored(File file) {
+		return ((memory != null) && (memory.get(file) != null)) || file.exists();
+	}
+
+	//Determine whether a directory belongs to a study in the database.
+	//The dirname of a study is its StudyInstanceUID with any separators
+	//and whitespace replaced, so for a valid UID it is the UID itself.
+	private boolean isIndexed(File dir) {
+		XDSStudy study = database.get(dir.getName());
+		return (study != null) && dir.getName().equals(study.getDirname());
+	}
+
+	//Re-index or reclaim a study directory that has no study in the database.
+	private void reconcile(File dir, File[] files) {
+		FileObject fo = null;
+		if (StudyManifest.getFile(dir).exists()) {
+			for (File file : files) {
+				if (file.getName().startsWith(".")) continue;
+				FileObject object = FileObject.getInstance(file);
+				if ((object instanceof DicomObject) && (object.getStudyInstanceUID() != null)
+						&& CacheLayout.getDirname(object.getStudyInstanceUID()).equals(dir.getName())) {
+					fo = object;
+					break;
+				}
+			}
+		}
+		if (fo == null) {
+			synchronized (getStudyLock(dir.getName())) {
+				if (isIndexed(dir)) return;
+				if (reaper.reap(dir, 0)) {
+					orphansReclaimed.incrementAndGet();
+					logger.info(context+": reclaimed the orphaned directory "+dir);
+				}
+			}
+			return;
+		}
+		String studyUID = fo.getStudyInstanceUID();
+		synchronized (getStudyLock(studyUID)) {
+			if (database.get(studyUID) != null) return;
+			XDSStudy study = new XDSStudy(fo, layout);
+			study.setDirectory(dir);
+			long bytes = 0;
+			for (File file : files) {
+				if (file.getName().startsWith(".")) continue;
+				study.addObject(file.getName());
+				bytes += file.length();
+			}
+			study.setBytes(bytes);
+			cacheBytes.addAndGet(bytes);
+			study.setLastModifiedTime();
+			study.setStatus(XDSStudyStatus.OPEN);
+			database.put(study);
+			schedule(study);
+			studiesReindexed.incrementAndGet();
+			logger.info(context+": re-indexed the study in "+dir);
+		}
+	}
+
+	/**
+	 * Get HTML table rows displaying the work of the reconciler,
+	 * or an empty string if the reconciler is not enabled.
+	 */
+	public String getReconcilerHTML() {
+		if (reconciler == null) return "";
+		return "<tr><td width=\"20%\">Reconciler:</td><td>"
+				+ studiesReindexed.get() + " studies re-indexed, "
+				+ orphansReclaimed.get() + " orphaned directories reclaimed</td></tr>";
+	}
+
+	//The thread that moves the directories of the studies cached under
+	//the other layout into their locations in the current layout. Studies
+	//that are queued or in transit are left where they are until the next
+	//start, so a transmission never sees its files move.
+	class MigrationThread extends Thread {
+		public MigrationThread() {
+			super(context + "-migration");
+			setDaemon(true);
+			setPriority(Thread.MIN_PRIORITY);
+		}
+		public void run() {
+			int moved = 0;
+			for (XDSStudy study : database.getAllStudies()) {
+				if (draining) return;
+				synchronized (getStudyLock(study.getStudyUID())) {
+					XDSStudyStatus status = study.getStatus();
+					if (status.is(XDSStudyStatus.QUEUED) || status.is(XDSStudyStatus.INTRANSIT)) continue;
+					File dir = study.getDirectory();
+					File target = layout.getStudyDir(study.getDirname());
+					if ((dir == null) || !dir.exists() || dir.equals(target)) continue;
+					try {
+						target.getParentFile().mkdirs();
+						Files.move(dir.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+						study.setDirectory(target);
+						//Remove the hash directories that the move emptied, if any.
+						File parent = dir.getParentFile();
+						while (!parent.equals(cacheRoot) && parent.delete()) parent = parent.getParentFile();
+						moved++;
+					}
+					catch (Exception ex) {
+						logger.warn("Unable to move "+dir+" to "+target, ex);
+					}
+				}
+			}
+			if (moved > 0) logger.info(context+": moved "+moved+" study directories to the "+layout.getType()+" layout");
+		}
+	}
+
+	//Total the bytes of the cached studies. Studies stored before their
+	//bytes were counted are measured from their directories once.
+	private void countBytes() {
+		long total = 0;
+		for (XDSStudy study : database.getAllStudies()) {
+			if ((study.getBytes() == 0) && (study.getSize() > 0)) {
+				long bytes = 0;
+				for (File file : study.getFiles()) bytes += file.length();
+				study.setBytes(bytes);
+				database.put(study);
+			}
+			total += study.getBytes();
+		}
+		cacheBytes.set(total);
+	}
+
+	/**
+	 * Get the number of bytes occupied by the studies in the cache.
+	 */
+	public long getCacheBytes() {
+		return cacheBytes.get();
+	}
+
+	/**
+	 * Wait until there is space in the cache for another object. If the cache
+	 * is above the high watermark, transmitted studies are evicted, oldest
+	 * first, and the calling thread is blocked until the cache is below the
+	 * low watermark (or the cache is closing), applying backpressure to the
+	 * pipeline. If no watermark is configured, this method returns immediately.
+	 */
+	public void waitForSpace() {
+		if ((highWatermark <= 0) || (cacheBytes.get() < highWatermark)) return;
+		evictTransmittedStudies();
+		synchronized (spaceLock) {
+			if (cacheBytes.get() >= lowWatermark) {
+				if (!blocked) logger.warn(context+": the cache is full; storage is blocked until studies are sent or removed");
+				blocked = true;
+				while ((cacheBytes.get() >= lowWatermark) && !draining) {
+					try { spaceLock.wait(1000); }
+					catch (InterruptedException ex) { break; }
+					if (cacheBytes.get() >= lowWatermark) evictTransmittedStudies();
+				}
+				blocked = false;
+			}
+		}
+	}
+
+	/**
+	 * Get the StudyReaper that deletes the directories of removed studies.
+	 */
+	public StudyReaper getReaper() {
+		return reaper;
+	}
+
+	/**
+	 * Get HTML table rows displaying the occupancy of the cache.
+	 */
+	public String getOccupancyHTML() {
+		double mb = ((double)cacheBytes.get()) / (1024 * 1024);
+		String occupancy = String.format("%.1f MB", mb);
+		if (highWatermark > 0) {
+			occupancy += String.format(" (%.0f%% of %d MB high watermark, %d MB low watermark)",
+							100.0 * cacheBytes.get() / highWatermark,
+							highWatermark / (1024 * 1024), lowWatermark / (1024 * 1024));
+		}
+		if (blocked) occupancy += " - storage blocked";
+		return "<tr><td width=\"20%\">Cache occupancy:</td><td>" + occupancy + "</td></tr>";
+	}
+
+	//Remove SUCCESS studies, oldest first, until the cache is below the low
+	//watermark, not counting the studies that are waiting for the reaper.
+	private void evictTransmittedStudies() {
+		XDSStudy[] studies = database.getStudies(XDSStudyStatus.SUCCESS);
+		Arrays.sort(studies, new Comparator<XDSStudy>() {
+			public int compare(XDSStudy s1, XDSStudy s2) {
+				long t1 = s1.getLastModifiedTime();
+				long t2 = s2.getLastModifiedTime();
+				return (t1 < t2) ? -1 : ((t1 > t2) ? 1 : 0);
+			}
+		});
+		int evicted = 0;
+		for (XDSStudy study : studies) {
+			if ((cacheBytes.get() - reaper.getPendingBytes()) < lowWatermark) break;
+			if (removeStudy(study.getStudyUID(), XDSStudyStatus.SUCCESS)) evicted++;
+		}
+		if (evicted > 0) logger.info(context+": evicted "+evicted+" transmitted studies");
+	}
+
+	//Remove a study from the cache and hand its directory to the reaper, which
+	//releases its bytes as the objects are deleted. If a status is specified,
+	//the study is only removed if it still has that status.
+	private boolean removeStudy(String studyUID, XDSStudyStatus status) {
+		synchronized (getStudyLock(studyUID)) {
+			XDSStudy study = database.get(studyUID);
+			if (study == null) return false;
+			if ((status != null) && !study.getStatus().is(status)) return false;
+			if (memory != null) memory.discard(study.getDirectory());
+			if (!reaper.reap(study.getDirectory(), study.getBytes())) {
+				FileUtil.deleteAll(study.getDirectory());
+				cacheBytes.addAndGet(-study.getBytes());
+			}
+			database.remove(study);
+		}
+		synchronized (spaceLock) {
+			spaceLock.notifyAll();
+		}
+		return true;
 	}
 
 	/**
@@ -84,22 +614,151 @@ public class XDSStudyCache {
 	}
 
 	/**
-	 * Close the cache and its underlying database.
+	 * Close the cache and its underlying database immediately.
 	 */
 	public void close() {
+		close(0);
+	}
+
+	/**
+	 * Drain the cache and then close it and its underlying database. No more
+	 * transmissions are started; queued transmissions stay in the send journal
+	 * and are restarted when the stage starts again. The transmissions in
+	 * progress are given until the deadline to finish. Any transmission that
+	 * is still running at the deadline is abandoned; it remains in the send
+	 * journal and is handled according to the recoveryPolicy when the stage
+	 * starts again. This method returns immediately; isClosed reports when
+	 * the cache has actually closed.
+	 * @param drainTimeout the maximum time in milliseconds to wait for the
+	 * transmissions in progress to finish.
+	 */
+	public synchronized void close(long drainTimeout) {
+		if (draining) return;
+		draining = true;
+		reaper.interrupt();
+		if (reconciler != null) reconciler.interrupt();
+		scheduler.suspend(context);
+		if (completion != null) {
+			completion.interrupt();
+			completion = null;
+		}
+		if (streamer != null) streamer.interrupt();
+		if ((drainTimeout > 0) && !transmitting.isEmpty()) {
+			logger.info(context+": waiting for "+transmitting.size()+" transmissions to finish");
+			new DrainThread(drainTimeout).start();
+		}
+		else closeDatabase();
+	}
+
+	//Close the database and the journal, recording the studies that
+	//were abandoned in transit.
+	private void closeDatabase() {
+		if (!transmitting.isEmpty()) {
+			logger.warn(context+": closing with "+transmitting.size()+" transmissions in progress");
+		}
+		spillAll();
 		database.close();
+		writer.close();
+		journal.close();
+		closed = true;
 	}
 
 	/**
-	 * Determine whether the cache has been closed.
-	 * This method ensures that any studies that are in transit
-	 * are completed before returning.
+	 * Determine whether the cache has been closed. The cache is closed
+	 * when the transmissions in progress have finished (or the drain
+	 * deadline has passed) and the database has been closed.
 	 */
 	public boolean isClosed() {
-		if (!database.isClosed()) return false;
+		return closed;
+	}
+
+	/**
+	 * Determine whether the cache is draining or closed.
+	 */
+	public boolean isDraining() {
+		return draining;
+	}
+
+	//The thread that waits for the transmissions in progress to finish
+	class DrainThread extends Thread {
+		final long deadline;
+		public DrainThread(long drainTimeout) {
+			super(context + "-drain");
+			this.deadline = System.currentTimeMillis() + drainTimeout;
+		}
+		public void run() {
+			while (!transmitting.isEmpty() && (System.currentTimeMillis() < deadline)) {
+				try { Thread.sleep(500); }
+				catch (InterruptedException ex) { break; }
+			}
+			closeDatabase();
+		}
+	}
+
+	/**
+	 * Get the number of studies being transmitted.
+	 */
+	public int getTransmittingStudyCount() {
+		return transmitting.size();
+	}
 
-		//TODO: check whether anything is in transit.
-		return true; //******************************** TEST
+	/**
+	 * Restart the transmissions that were pending when the stage stopped.
+	 * The transmissions in the send journal are handled first, in the order
+	 * in which they were queued, followed by any QUEUED or INTRANSIT studies
+	 * in the database that are not in the journal (for example, studies that
+	 * were queued before the journal existed). QUEUED studies are queued
+	 * again. INTRANSIT studies are handled according to the recoveryPolicy:
+	 * "resend" queues them again for the destinations to which they were not
+	 * successfully sent; "fail" marks them FAILED so they can be resent by
+	 * the operator.
+	 */
+	public void recoverTransmissions() {
+		LinkedHashMap<String,List<String>> pending = journal.getPendingTransmissions();
+		for (XDSStudy study : database.getStudies(XDSStudyStatus.QUEUED)) {
+			if (!pending.containsKey(study.getStudyUID())) {
+				pending.put(study.getStudyUID(), study.getDestinationKeys());
+			}
+		}
+		for (XDSStudy study : database.getStudies(XDSStudyStatus.INTRANSIT)) {
+			if (!pending.containsKey(study.getStudyUID())) {
+				pending.put(study.getStudyUID(), study.getDestinationKeys());
+			}
+		}
+		int resent = 0;
+		int failed = 0;
+		for (String studyUID : pending.keySet()) {
+			List<String> keys = pending.get(studyUID);
+			synchronized (getStudyLock(studyUID)) {
+				XDSStudy study = database.get(studyUID);
+				XDSStudyStatus status = (study != null) ? study.getStatus() : null;
+				if ((status != null) && status.is(XDSStudyStatus.QUEUED)) {
+					sendStudy(keys, studyUID);
+					resent++;
+				}
+				else if ((status != null) && status.is(XDSStudyStatus.INTRANSIT)) {
+					List<String> unsent = new ArrayList<String>();
+					for (String key : keys) {
+						if (!study.getDestinationStatus(key).is(XDSStudyStatus.SUCCESS)) unsent.add(key);
+					}
+					if (recoveryPolicy.equals(RESEND) && !unsent.isEmpty()) {
+						sendStudy(unsent, studyUID);
+						resent++;
+					}
+					else {
+						for (String key : unsent) study.setDestinationStatus(key, XDSStudyStatus.FAILED);
+						study.setStatus(unsent.isEmpty() ? XDSStudyStatus.SUCCESS : XDSStudyStatus.FAILED);
+						database.put(study);
+						journal.finished(studyUID);
+						failed++;
+					}
+				}
+				else journal.finished(studyUID);
+			}
+		}
+		if ((resent + failed) > 0) {
+			logger.info(context+": requeued "+resent+" and failed "+failed+" interrupted transmissions");
+		}
 	}
 
 	/**
@@ -109,8 +768,12 @@ public class XDSStudyCache {
 	 * @param phiObject the object from which PHI is to be obtained
 	 * for storage in the database. If this parameter is null, the
 	 * indexed values are obtained from fileObject.
+	 * @return null if the object was stored or was already in the cache;
+	 * otherwise, the reason why the object was rejected or could not be
+	 * stored. Such objects are not indexed, so the send path only sees
+	 * objects that can be sent.
 	 */
-	public void store(FileObject fileObject, FileObject phiObject) {
+	public String store(FileObject fileObject, FileObject phiObject) {
 
 		//In this method, fileObject refers to the object that has
 		//flowed down the pipe to the export stage. Depending on the
@@ -131,27 +794,253 @@ public class XDSStudyCache {
 		//administrators should be warned that this can be a PHI leak.
 
 		FileObject fo = (phiObject != null) ? phiObject : fileObject;
+
+		//Check the object that will be sent before caching it.
+		String reason = IngestValidator.check(fileObject);
+		if (reason != null) {
+			reject(fo.getStudyInstanceUID(), reason);
+			return reason;
+		}
+
 		String studyUID = fo.getStudyInstanceUID();
-		String dirname = studyUID.replaceAll("[\\\\/\\s]", "_").trim();
-		File studyDir = new File(cacheRoot, dirname);
-		studyDir.mkdirs();
 		String filename = fo.getSOPInstanceUID().replaceAll("[\\\\/\\s]", "_").trim();
-		File file = new File(studyDir, filename);
-		//int inc = file.exists() ? 0 : 1;
-		FileUtil.copy(fileObject.getFile(), file);
 
-		//Now update the database so the servlet can track the study.
-		XDSStudy study = database.get(studyUID);
-		if (study == null) {
-			//There is no study for this object, create a new study.
-			study = new XDSStudy(fo, studyDir);
+		//Objects of different studies are stored in parallel;
+		//objects of the same study are stored one at a time.
+		synchronized (getStudyLock(studyUID)) {
+			XDSStudy study = database.get(studyUID);
+			File studyDir = (study != null)
+								? study.getDirectory()
+									: layout.getStudyDir(CacheLayout.getDirname(studyUID));
+			studyDir.mkdirs();
+			File file = new File(studyDir, filename);
+
+			//Skip an object that is already cached with identical content,
+			//so a resent object neither costs a write nor reopens the study.
+			if (isDuplicate(study, filename, fileObject.getFile(), file)) {
+				dedupHits.incrementAndGet();
+				return null;
+			}
+
+			//Store the object in the memory tier if its study is small enough
+			//and the tier has room; otherwise store it on the disk, spilling
+			//the study first if its other objects are in the memory tier.
+			long oldLength = getLength(file);
+			long length = fileObject.getFile().length();
+			String digest = null;
+			if (memory != null) {
+				long studyBytes = (study != null) ? study.getBytes() : 0;
+				if (memory.accepts(studyDir, studyBytes, length) && memory.hasRoom(length)) {
+					digest = memory.put(studyUID, fileObject.getFile(), file);
+				}
+				//Keep the study all in memory or all on disk.
+				if ((digest == null) && memory.holds(studyDir) && !memory.spill(studyDir, writer)) {
+					reason = "unable to spill the study to the disk";
+					reject(studyUID, reason);
+					return reason;
+				}
+			}
+			if (digest == null) digest = writer.write(fileObject.getFile(), file);
+
+			//Leave the study unchanged if the object could not be stored,
+			//so the index never refers to an object that is not in the cache.
+			if (digest == null) {
+				reason = "unable to store the object in the cache";
+				reject(studyUID, reason);
+				return reason;
+			}
+			long delta = getLength(file) - oldLength;
+			appendManifest(studyDir, filename, fileObject, digest, getLength(file));
+
+			//Now update the database so the servlet can track the study.
+			if (study == null) {
+				//There is no study for this object, create a new study.
+				study = new XDSStudy(fo, layout);
+				Rejections r = pendingRejections.remove(studyUID);
+				if (r != null) study.addRejected(r.count, r.reason);
+			}
+			else study.update(fo); //update the study description, etc., if they have not already been stored
+
+			boolean added = study.addObject(filename); //count the object if it is new to the study
+			study.setDigest(filename, digest);
+			study.addBytes(delta);
+			cacheBytes.addAndGet(delta);
+			study.setLastModifiedTime(); //record the time of this object storage
+			study.setStatus(XDSStudyStatus.OPEN);
+			if (streamer != null) {
+				String seriesUID = ((DicomObject)fileObject).getSeriesInstanceUID();
+				study.addSeriesObject(seriesUID, filename, added);
+				scheduleSeries(study, seriesUID);
+			}
+			database.put(study);
+			schedule(study);
+			for (CompletionDetector detector : detectors) {
+				if (detector.objectStored(study, fileObject, added)) {
+					signal(study, detector.getName());
+					break;
+				}
+			}
+		}
+		return null;
+	}
+
+	//Record the rejection of an object in the summary of its study. If the study
+	//has no accepted objects yet, the rejection is held until it does.
+	private void reject(String studyUID, String reason) {
+		rejectedObjects.incrementAndGet();
+		if ((studyUID == null) || studyUID.trim().equals("")) return;
+		synchronized (getStudyLock(studyUID)) {
+			XDSStudy study = database.get(studyUID);
+			if (study != null) {
+				study.addRejected(1, reason);
+				database.put(study);
+			}
+			else {
+				//Bound the held rejections in case their studies never arrive.
+				if (pendingRejections.size() >= 1000) pendingRejections.clear();
+				Rejections r = pendingRejections.get(studyUID);
+				if (r == null) pendingRejections.put(studyUID, new Rejections(reason));
+				else r.add(reason);
+			}
+		}
+	}
+
+	//The rejections of a study that has no accepted objects
+	static class Rejections {
+		int count = 1;
+		String reason;
+		public Rejections(String reason) {
+			this.reason = reason;
+		}
+		public void add(String reason) {
+			count++;
+			this.reason = reason;
+		}
+	}
+
+	/**
+	 * Get HTML table rows displaying the number of objects rejected at ingest.
+	 */
+	public String getRejectionHTML() {
+		return "<tr><td width=\"20%\">Objects rejected:</td><td>" + rejectedObjects.get() + "</td></tr>";
+	}
+
+	//Determine whether an object is already in the study with the same size
+	//and digest. The digest of the incoming file is only computed when an
+	//object with the same SOPInstanceUID and size is already cached, and the
+	//digests of the cached objects are loaded from the manifest the first time
+	//they are needed (or computed, if the object was stored without one).
+	//This method must be called while holding the lock for the study.
+	private boolean isDuplicate(XDSStudy study, String filename, File source, File file) {
+		if ((study == null) || !study.hasObject(filename)) return false;
+		if (!isStored(file) || (getLength(file) != source.length())) {
+			dedupMisses.incrementAndGet();
+			return false;
+		}
+		if (!study.hasDigests()) {
+			HashMap<String,String> digests = new HashMap<String,String>();
+			Map<String,org.dcm4che2.data.DicomObject> manifest = StudyManifest.read(study.getDirectory());
+			if (manifest != null) {
+				for (String name : manifest.keySet()) {
+					String digest = manifest.get(name).getString(StudyManifest.DIGEST);
+					if (digest != null) digests.put(name, digest);
+				}
+			}
+			study.setDigests(digests);
 		}
-		else study.update(fo); //update the study description, etc., if they have not already been stored
+		//Objects stored without passing through the JVM have no recorded digest.
+		String known = study.getDigest(filename);
+		if ((known == null) || known.equals("")) known = writer.digest(file);
+		boolean duplicate = (known != null) && known.equals(writer.digest(source));
+		if (!duplicate) dedupMisses.incrementAndGet();
+		return duplicate;
+	}
+
+	/**
+	 * Compact the database in the background, if its storage engine
+	 * requires compaction and a compaction is not already running.
+	 * @return true if a compaction was started; false otherwise.
+	 */
+	public synchronized boolean compactIndex() {
+		if (!(database instanceof XDSDatabase) || draining) return false;
+		if ((compactor != null) && compactor.isAlive()) return false;
+		compactor = new CompactionThread((XDSDatabase)database);
+		compactor.start();
+		return true;
+	}
 
-		study.setSize(studyDir.listFiles().length); //count the object added to the study
-		study.setLastModifiedTime(); //record the time of this object storage
-		study.setStatus(XDSStudyStatus.OPEN);
-		database.put(study);
+	//The thread that compacts the database
+	class CompactionThread extends Thread {
+		final XDSDatabase db;
+		public CompactionThread(XDSDatabase db) {
+			super(context + "-compaction");
+			setDaemon(true);
+			setPriority(Thread.MIN_PRIORITY);
+			this.db = db;
+		}
+		public void run() {
+			db.compact();
+		}
+	}
+
+	/**
+	 * Get HTML table rows displaying the last compaction of the
+	 * database, or an empty string if there has not been one.
+	 */
+	public String getCompactionHTML() {
+		if (!(database instanceof XDSDatabase)) return "";
+		XDSDatabase db = (XDSDatabase)database;
+		boolean running = (compactor != null) && compactor.isAlive();
+		String text = running ? "running" : "";
+		if (db.getLastCompactionTime() != 0) {
+			double mb = ((double)db.getLastReclaimedBytes()) / (1024 * 1024);
+			text = String.format("%.1f MB reclaimed at ", mb)
+					+ StringUtil.getDateTime(db.getLastCompactionTime(), " ")
+					+ (running ? " (running)" : "");
+		}
+		if (text.equals("")) return "";
+		return "<tr><td width=\"20%\">Index compaction:</td><td>" + text + "</td></tr>";
+	}
+
+
+	/**
+	 * Get HTML table rows displaying the duplicate detection counters.
+	 */
+	public String getDedupHTML() {
+		return "<tr><td width=\"20%\">Duplicates skipped:</td><td>" + dedupHits.get()
+				+ " (" + dedupMisses.get() + " resent objects with new content)</td></tr>";
+	}
+
+	//Record the header attributes, digest, and size of a stored object in the
+	//study's manifest. Note that the values come from the object that is
+	//actually stored (and sent), not from the PHI object.
+	private void appendManifest(File studyDir, String filename, FileObject fileObject, String digest, long size) {
+		if (!(fileObject instanceof DicomObject)) return;
+		DicomObject dob = (DicomObject)fileObject;
+		int[] tags = StudyManifest.TAGS;
+		String[] values = new String[tags.length];
+		for (int i=0; i<tags.length; i++) {
+			String value = (tags[i] == Tag.TransferSyntaxUID)
+								? dob.getTransferSyntaxUID()
+									: dob.getElementValue(tags[i]);
+			if ((value != null) && !value.trim().equals("")) values[i] = value.trim();
+		}
+		try { StudyManifest.append(studyDir, filename, values, digest, size); }
+		catch (Exception ex) {
+			logger.warn("Unable to update the manifest for "+studyDir, ex);
+		}
+	}
+
+	//Get the lock that serializes the changes to a study.
+	private Object getStudyLock(String studyUID) {
+		return studyLocks[ (studyUID.hashCode() & 0x7fffffff) % studyLocks.length ];
+	}
+
+	/**
+	 * Get the CacheWriter that stores objects in the cache.
+	 */
+	public CacheWriter getCacheWriter() {
+		return writer;
 	}
 
 	/**
@@ -161,6 +1050,13 @@ public class XDSStudyCache {
 		return database.getCompleteStudyCount();
 	}
 
+	/**
+	 * Get the number of studies waiting in the SendScheduler's queue for this cache.
+	 */
+	public int getQueuedStudyCount() {
+		return scheduler.getQueueSize(context);
+	}
+
 	/**
 	 * Get the total number of studies in the database.
 	 */
@@ -199,8 +1095,14 @@ public class XDSStudyCache {
 			Element root = doc.createElement("Studies");
 			doc.appendChild(root);
 			XDSStudy[] studies = database.getSentStudies();
+			Map<String,Integer> positions = scheduler.getQueuedPositions(context);
 			for (XDSStudy study : studies) {
-				root.appendChild( doc.importNode(study.getXML().getDocumentElement(), true) );
+				Element se = (Element)doc.importNode(study.getXML().getDocumentElement(), true);
+				if (study.getStatus().is(XDSStudyStatus.QUEUED)) {
+					Integer position = positions.get(study.getStudyUID());
+					if (position != null) se.setAttribute("queuePosition", position.toString());
+				}
+				root.appendChild(se);
 			}
 			return doc;
 		}
@@ -239,9 +1141,349 @@ public class XDSStudyCache {
 	public void checkOpenStudies(long time) {
 		XDSStudy[] studies = database.getStudies(XDSStudyStatus.OPEN);
 		for (XDSStudy study : studies) {
-			if (study.getLastModifiedTime() < time) {
-				study.setStatus(XDSStudyStatus.COMPLETE);
-				database.put(study);
+			synchronized (getStudyLock(study.getStudyUID())) {
+				if (study.getStatus().is(XDSStudyStatus.OPEN)
+						&& (study.getLastModifiedTime() < time)) {
+					study.setStatus(XDSStudyStatus.COMPLETE);
+					database.put(study);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Start the thread that changes the status of OPEN studies to COMPLETE
+	 * when their quiet period expires. Each OPEN study has one deadline in a
+	 * DelayQueue. When the deadline expires, the study's lastModifiedTime is
+	 * checked, and if objects have arrived in the meantime, the deadline is
+	 * requeued for the end of the new quiet period. Thus a study becomes
+	 * COMPLETE as soon as minAge has passed since its last object, and
+	 * storing an object costs no more than a set lookup.
+	 * @param minAge the quiet period in milliseconds.
+	 * @param autosendKey the key of the destination to which studies are to
+	 * be sent as soon as they are complete, or null if studies are not to be
+	 * sent automatically.
+	 */
+	public synchronized void startCompletionThread(long minAge, String autosendKey) {
+		if (completion != null) return;
+		completion = new CompletionThread(minAge, autosendKey);
+		for (XDSStudy study : database.getStudies(XDSStudyStatus.OPEN)) {
+			synchronized (getStudyLock(study.getStudyUID())) {
+				schedule(study);
+			}
+		}
+		completion.start();
+	}
+
+	//Queue a completion deadline for an OPEN study if it does not already have one.
+	//This method must be called while holding the lock for the study.
+	private void schedule(XDSStudy study) {
+		CompletionThread ct = completion;
+		if ((ct != null) && scheduled.add(study.getStudyUID())) {
+			deadlines.put( new Deadline(study.getStudyUID(), study.getLastModifiedTime() + ct.minAge) );
+		}
+	}
+
+	//Get a CompletionDetector by name or class name.
+	private CompletionDetector getCompletionDetector(String name) {
+		if (name.equals("")) return null;
+		if (name.equals("instanceCount")) return new InstanceCountDetector();
+		try { return (CompletionDetector)Class.forName(name).newInstance(); }
+		catch (Exception ex) {
+			logger.warn(context+": unknown completion detector: "+name);
+			return null;
+		}
+	}
+
+	/**
+	 * Request the completion of an OPEN study, for example because the
+	 * modality or an operator has signaled that all its objects have been
+	 * sent. The study is completed when it has been quiet for the safety
+	 * period, so an object that is still in the pipeline reopens the wait
+	 * rather than being left out.
+	 * @param studyUID the StudyInstanceUID of the study.
+	 * @return true if the request was accepted; false if the study is not
+	 * OPEN or studies are not being completed.
+	 */
+	public boolean requestCompletion(String studyUID) {
+		synchronized (getStudyLock(studyUID)) {
+			XDSStudy study = database.get(studyUID);
+			if ((study == null) || !study.getStatus().is(XDSStudyStatus.OPEN)) return false;
+			return signal(study, TRIGGER);
+		}
+	}
+
+	//Record that a detector has found a study to be complete and queue a
+	//deadline for the end of its safety period. This method must be called
+	//while holding the lock for the study.
+	private boolean signal(XDSStudy study, String name) {
+		CompletionThread ct = completion;
+		if (ct == null) return false;
+		String studyUID = study.getStudyUID();
+		if (detected.put(studyUID, name) == null) {
+			scheduled.add(studyUID);
+			deadlines.put( new Deadline(studyUID, study.getLastModifiedTime() + Math.min(safetyPeriod, ct.minAge)) );
+		}
+		return true;
+	}
+
+	//Record the time that a study waited after its last object to be completed.
+	private void recordWait(String studyUID, String name, long wait) {
+		synchronized (waits) {
+			long[] w = waits.get(name);
+			if (w == null) {
+				w = new long[2];
+				waits.put(name, w);
+			}
+			w[0]++;
+			w[1] += wait;
+		}
+		logger.debug(context+": "+studyUID+" completed by "+name+" after waiting "+(wait/1000)+" s");
+	}
+
+	/**
+	 * Get HTML table rows displaying the number of studies completed by each
+	 * means and the average time they waited after their last objects.
+	 */
+	public String getCompletionHTML() {
+		StringBuffer sb = new StringBuffer();
+		synchronized (waits) {
+			for (String name : waits.keySet()) {
+				long[] w = waits.get(name);
+				if (sb.length() > 0) sb.append(", ");
+				sb.append(w[0] + " by " + name + " (average wait " + (w[1] / w[0] / 1000) + " s)");
+			}
+		}
+		if (sb.length() == 0) return "";
+		return "<tr><td width=\"20%\">Studies completed:</td><td>" + sb.toString() + "</td></tr>";
+	}
+
+	//The thread that changes the status of studies whose deadlines have expired
+	class CompletionThread extends Thread {
+
+		final long minAge;
+		final String autosendKey;
+
+		public CompletionThread(long minAge, String autosendKey) {
+			super(context + "-completion");
+			setDaemon(true);
+			this.minAge = minAge;
+			this.autosendKey = autosendKey;
+		}
+
+		public void run() {
+			while (!isInterrupted()) {
+				Deadline deadline;
+				try { deadline = deadlines.take(); }
+				catch (InterruptedException ex) { return; }
+				String studyUID = deadline.studyUID;
+				boolean complete = false;
+				synchronized (getStudyLock(studyUID)) {
+					XDSStudy study = database.get(studyUID);
+					String name = detected.get(studyUID);
+					if ((study == null) || !study.getStatus().is(XDSStudyStatus.OPEN)) {
+						scheduled.remove(studyUID);
+						forget(studyUID);
+					}
+					else {
+						//A detected study only has to be quiet for the safety period.
+						long quiet = (name != null) ? Math.min(safetyPeriod, minAge) : minAge;
+						long time = study.getLastModifiedTime() + quiet;
+						long now = System.currentTimeMillis();
+						if (time > now) {
+							deadlines.put( new Deadline(studyUID, time) );
+						}
+						else {
+							scheduled.remove(studyUID);
+							forget(studyUID);
+							study.setStatus(XDSStudyStatus.COMPLETE);
+							database.put(study);
+							recordWait(studyUID, (name != null) ? name : QUIET_PERIOD, now - study.getLastModifiedTime());
+							complete = true;
+						}
+					}
+				}
+				if (complete && (autosendKey != null)) sendStudy(autosendKey, studyUID);
+			}
+		}
+	}
+
+	//Release the state held by the detectors for a study.
+	private void forget(String studyUID) {
+		detected.remove(studyUID);
+		for (CompletionDetector detector : detectors) detector.forget(studyUID);
+	}
+
+	//The time at which a study is to be checked for completion
+	static class Deadline implements Delayed {
+
+		final String studyUID;
+		final String seriesUID;
+		final long time;
+
+		public Deadline(String studyUID, long time) {
+			this(studyUID, null, time);
+		}
+
+		public Deadline(String studyUID, String seriesUID, long time) {
+			this.studyUID = studyUID;
+			this.seriesUID = seriesUID;
+			this.time = time;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(time - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		public int compareTo(Delayed d) {
+			long t = ((Deadline)d).time;
+			return (time < t) ? -1 : ((time > t) ? 1 : 0);
+		}
+	}
+
+	/**
+	 * Start streaming OPEN studies series by series, if the streaming
+	 * attribute is enabled. Each series is sent to the autosend destination
+	 * in a submission set of its own, without a KOS, when no object of the
+	 * series has been received for the seriesQuietPeriod. When the study is
+	 * complete, the final transmission sends the objects that were not sent
+	 * with their series, followed by the KOS of the whole study. Thus the
+	 * transmission of a large study overlaps its acquisition.
+	 * @param key the key of the destination to which the series are sent,
+	 * or null if studies are not sent automatically, in which case studies
+	 * are not streamed.
+	 */
+	public synchronized void startStreaming(String key) {
+		if (!streaming || (streamer != null)) return;
+		if (key == null) {
+			logger.warn(context+": streaming requires autosend; studies will be sent whole");
+			return;
+		}
+		streamer = new SeriesThread(key);
+		for (XDSStudy study : database.getStudies(XDSStudyStatus.OPEN)) {
+			synchronized (getStudyLock(study.getStudyUID())) {
+				for (String seriesUID : study.getUnsentSeries()) scheduleSeries(study, seriesUID);
+			}
+		}
+		streamer.start();
+	}
+
+	//Queue a deadline for a series if it does not already have one.
+	//This method must be called while holding the lock for the study.
+	private void scheduleSeries(XDSStudy study, String seriesUID) {
+		String studyUID = study.getStudyUID();
+		if (seriesScheduled.add(studyUID + "/" + seriesUID)) {
+			long time = study.getSeriesLastModifiedTime(seriesUID) + seriesQuietPeriod;
+			seriesDeadlines.put( new Deadline(studyUID, seriesUID, time) );
+		}
+	}
+
+	//Get the lock that serializes the transmissions of a study, so the series
+	//of a study are sent one at a time and its final transmission follows them.
+	private Object getSendLock(String studyUID) {
+		return sendLocks[ (studyUID.hashCode() & 0x7fffffff) % sendLocks.length ];
+	}
+
+	/**
+	 * Get HTML table rows displaying the number of series that have been
+	 * streamed, if streaming is enabled.
+	 */
+	public String getStreamingHTML() {
+		if (streamer == null) return "";
+		return "<tr><td width=\"20%\">Series streamed:</td>"
+				+ "<td>" + seriesSent.get() + " sent, " + seriesFailed.get() + " failed</td></tr>";
+	}
+
+	//The thread that queues the transmission of each series when its quiet period expires
+	class SeriesThread extends Thread {
+
+		final String key;
+
+		public SeriesThread(String key) {
+			super(context + "-streaming");
+			setDaemon(true);
+			this.key = key;
+		}
+
+		public void run() {
+			while (!isInterrupted()) {
+				Deadline deadline;
+				try { deadline = seriesDeadlines.take(); }
+				catch (InterruptedException ex) { return; }
+				String studyUID = deadline.studyUID;
+				String seriesUID = deadline.seriesUID;
+				synchronized (getStudyLock(studyUID)) {
+					XDSStudy study = database.get(studyUID);
+					long time = (study != null) ? study.getSeriesLastModifiedTime(seriesUID) + seriesQuietPeriod : 0;
+					if ((study != null) && study.getStatus().is(XDSStudyStatus.OPEN)
+							&& (time > System.currentTimeMillis())) {
+						seriesDeadlines.put( new Deadline(studyUID, seriesUID, time) );
+						continue;
+					}
+					seriesScheduled.remove(studyUID + "/" + seriesUID);
+
+					//Once the study is no longer OPEN, its final
+					//transmission sends any unsent objects.
+					if ((study == null) || !study.getStatus().is(XDSStudyStatus.OPEN)) continue;
+					List<File> files = study.startSeries(seriesUID);
+					if (files == null) continue;
+					database.put(study);
+					Destination destination = Destinations.getInstance(context).get(key);
+					int priority = (destination != null) ? destination.getPriority() : 0;
+					List<String> keys = new ArrayList<String>();
+					keys.add(key);
+					scheduler.submit(context, studyUID + "/" + seriesUID, keys, files.size(), priority,
+									 new SeriesSender(study, seriesUID, files, key));
+				}
+			}
+		}
+	}
+
+	//The thread that sends the unsent objects of one series of an OPEN study
+	class SeriesSender extends Thread {
+
+		final XDSStudy study;
+		final String seriesUID;
+		final List<File> files;
+		final String key;
+
+		public SeriesSender(XDSStudy study, String seriesUID, List<File> files, String key) {
+			this.study = study;
+			this.seriesUID = seriesUID;
+			this.files = files;
+			this.key = key;
+		}
+
+		public void run() {
+			String studyUID = study.getStudyUID();
+			String id = studyUID + "/" + seriesUID;
+			transmitting.add(id);
+			try {
+				synchronized (getSendLock(studyUID)) {
+					Status status;
+					try {
+						XdsSender sender = new XdsSender(element);
+						status = sender.submitObjects(files, StudyManifest.read(study.getDirectory()), key);
+					}
+					catch (Exception ex) {
+						logger.warn("Unable to transmit series "+seriesUID+" of "+studyUID, ex);
+						status = Status.FAIL;
+					}
+					boolean ok = (status != null) && status.equals(Status.OK);
+					(ok ? seriesSent : seriesFailed).incrementAndGet();
+					synchronized (getStudyLock(studyUID)) {
+						study.finishSeries(seriesUID, files, ok);
+						if (database.get(studyUID) == study) {
+							//Objects that arrived during the transmission are
+							//sent when the series is quiet again.
+							if (study.getStatus().is(XDSStudyStatus.OPEN)) scheduleSeries(study, seriesUID);
+							database.put(study);
+						}
+					}
+				}
+			}
+			finally {
+				transmitting.remove(id);
 			}
 		}
 	}
@@ -255,20 +1497,18 @@ public class XDSStudyCache {
 		XDSStudy[] studies = database.getStudies(XDSStudyStatus.SUCCESS);
 		for (XDSStudy study : studies) {
 			if (study.getLastModifiedTime() < time) {
-				File dir = study.getDirectory();
-				FileUtil.deleteAll(dir);
-				database.remove(study);
+				removeStudy(study.getStudyUID(), XDSStudyStatus.SUCCESS);
 			}
 		}
 	}
 
 	/**
-	 * Delete a study.
-	 * @param studyUID the UID of the study to be queued.
+	 * Delete a study and its objects.
+	 * @param studyUID the UID of the study to be deleted.
 	 */
 	public void deleteStudy(String studyUID) {
-		XDSStudy study = database.get(studyUID);
-		if (study != null) database.remove(study);
+		if (scheduler.cancel(context, studyUID)) journal.finished(studyUID);
+		removeStudy(studyUID, null);
 	}
 
 	/**
@@ -288,17 +1528,37 @@ public class XDSStudyCache {
 	 * @param studyUID the UID of the study to be queued.
 	 */
 	public void sendStudy(String key, String studyUID) {
-		XDSStudy study  = database.get(studyUID);
-		if (study != null) {
-			study.setDestination(key);
-			String destinationName = "";
-			try { destinationName = Destinations.getInstance(context).get(key).getName(); }
-			catch (Exception notThere) { }
-			study.setDestinationName(destinationName);
+		List<String> keys = new ArrayList<String>();
+		keys.add(key);
+		sendStudy(keys, studyUID);
+	}
+
+	/**
+	 * Enqueue a study for transmission to a set of destinations, changing its
+	 * status to QUEUED. The study is sent to all the destinations in a single
+	 * transmission, which reads the headers and builds the KOS once and
+	 * then submits the study to the destinations one after another.
+	 * @param keys the keys identifying the destinations.
+	 * @param studyUID the UID of the study to be queued.
+	 */
+	public void sendStudy(List<String> keys, String studyUID) {
+		if (keys.isEmpty()) return;
+		synchronized (getStudyLock(studyUID)) {
+			XDSStudy study  = database.get(studyUID);
+			if (study == null) return;
+			List<String> names = new ArrayList<String>();
+			int priority = Integer.MIN_VALUE;
+			for (String key : keys) {
+				Destination destination = Destinations.getInstance(context).get(key);
+				names.add( (destination != null) ? destination.getName() : "" );
+				priority = Math.max(priority, (destination != null) ? destination.getPriority() : 0);
+			}
+			study.setDestinations(keys, names);
 			study.setStatus( XDSStudyStatus.QUEUED );
 			study.setObjectsSent(0);
 			database.put(study);
-			execSvc.execute( new StudySender(study) );
+			journal.queued(studyUID, keys);
+			scheduler.submit(context, studyUID, keys, study.getSize(), priority, new StudySender(study));
 		}
 	}
 
@@ -308,39 +1568,129 @@ public class XDSStudyCache {
 		XDSStudy study;
 		Timer timer = null;
 
+		//The number of objects of a streamed study sent before its final transmission
+		int offset = 0;
+
 		public StudySender(XDSStudy study) {
 			this.study = study;
 		}
 
 		public void run() {
 			if (study != null) {
+				String studyUID = study.getStudyUID();
+				transmitting.add(studyUID);
 				try {
-					study.setStatus(XDSStudyStatus.INTRANSIT);
-					database.put(study);
+					List<String> keys;
+					synchronized (getStudyLock(studyUID)) {
+						//Skip a study that was deleted or reopened while it was queued.
+						if ((database.get(studyUID) != study) || !study.getStatus().is(XDSStudyStatus.QUEUED)) {
+							logger.debug("Skipping the transmission of "+studyUID+": no longer queued");
+							return;
+						}
+						study.setStatus(XDSStudyStatus.INTRANSIT);
+						keys = study.getDestinationKeys();
+						for (String key : keys) study.setDestinationStatus(key, XDSStudyStatus.INTRANSIT);
+						database.put(study);
+					}
 
 					XdsSender sender = new XdsSender(element);
 					sender.addXDSSubmissionListener(this);
 					timer = new Timer();
-					Status status = sender.submit(
-										study.getFiles(),
-										study.getDestination());
-					logger.debug("XdsSender.submit returned "+status.toString()+" at "+timer.getTimeString());
-					if (status.equals(Status.OK)) {
-						study.setStatus( XDSStudyStatus.SUCCESS );
-						makeAuditLogEntry(study);
+					Map<String,Status> results;
+					SeriesThread st = streamer;
+					if ((st != null) && study.isStreamed() && (keys.size() == 1) && keys.get(0).equals(st.key)) {
+						results = submitStreamed(sender, keys.get(0));
 					}
 					else {
-						study.setStatus( XDSStudyStatus.FAILED );
+						results = sender.submit(
+										study.getFiles(),
+										StudyManifest.read(study.getDirectory()),
+										keys);
 					}
-					database.put(study);
+					logger.debug("XdsSender.submit returned "+results+" at "+timer.getTimeString());
+					List<String> sent = new ArrayList<String>();
+					synchronized (getStudyLock(studyUID)) {
+						boolean ok = true;
+						for (String key : keys) {
+							Status status = results.get(key);
+							if ((status != null) && status.equals(Status.OK)) {
+								study.setDestinationStatus(key, XDSStudyStatus.SUCCESS);
+								sent.add(key);
+							}
+							else {
+								study.setDestinationStatus(key, XDSStudyStatus.FAILED);
+								ok = false;
+							}
+						}
+						finish(ok ? XDSStudyStatus.SUCCESS : XDSStudyStatus.FAILED);
+					}
+					for (String key : sent) makeAuditLogEntry(study, key);
 				}
 				catch (Exception ex) {
 					logger.warn("Unable to transmit "+study.getStudyUID());
+					synchronized (getStudyLock(studyUID)) {
+						for (String key : study.getDestinationKeys()) {
+							if (study.getDestinationStatus(key).is(XDSStudyStatus.INTRANSIT)) {
+								study.setDestinationStatus(key, XDSStudyStatus.FAILED);
+							}
+						}
+						finish(XDSStudyStatus.FAILED);
+					}
+				}
+				finally {
+					//Leave the journal entry if the study has been queued again.
+					if (scheduler.getPosition(context, studyUID) == 0) journal.finished(studyUID);
+					transmitting.remove(studyUID);
 				}
 			}
 			else logger.warn("Attempt to transmit null study");
 		}
 
+		//Complete the transmission of a streamed study by sending the objects
+		//that were not sent with their series, followed by the KOS of the
+		//whole study. The send lock makes this wait for any series in transit.
+		private Map<String,Status> submitStreamed(XdsSender sender, String key) throws Exception {
+			Map<String,Status> results = new HashMap<String,Status>();
+			String studyUID = study.getStudyUID();
+			synchronized (getSendLock(studyUID)) {
+				Map<String,org.dcm4che2.data.DicomObject> manifest = StudyManifest.read(study.getDirectory());
+				List<File> unsent;
+				synchronized (getStudyLock(studyUID)) {
+					unsent = study.getUnsentFiles();
+					offset = study.getSeriesObjectsSent();
+				}
+				Status status = Status.OK;
+				if (!unsent.isEmpty()) {
+					status = sender.submitObjects(unsent, manifest, key);
+					if ((status != null) && status.equals(Status.OK)) {
+						synchronized (getStudyLock(studyUID)) {
+							study.finishUnsentFiles(unsent);
+							if (database.get(studyUID) == study) database.put(study);
+						}
+					}
+				}
+				if ((status != null) && status.equals(Status.OK)) {
+					status = sender.submitKos(study.getFiles(), manifest, key);
+					synchronized (getStudyLock(studyUID)) {
+						study.setDestinationObjectsSent(key, study.getSeriesObjectsSent());
+						if (database.get(studyUID) == study) database.put(study);
+					}
+				}
+				results.put(key, status);
+			}
+			return results;
+		}
+
+		//Record the final status of the transmission. A study that received an
+		//object during the transmission has been reopened by store, and it keeps
+		//its OPEN status so the new object is sent when the study is complete.
+		//This method must be called while holding the lock for the study.
+		private void finish(XDSStudyStatus status) {
+			if (database.get(study.getStudyUID()) != study) return;
+			if (study.getStatus().is(XDSStudyStatus.INTRANSIT)) study.setStatus(status);
+			database.put(study);
+		}
+
 		public void eventOccurred(XdsSubmissionEvent event) {
 			if (event instanceof Iti41Event) {
 				Iti41Event e = (Iti41Event)event;
@@ -350,12 +1700,14 @@ public class XDSStudyCache {
 				String fn = (f != null) ? f.getName() : "null";
 				String t = timer.getTimeString();
 				logger.debug("Iti41Event (currentImage:"+ci+"/"+ni+") received at "+t+" ["+fn+"]");
-				study.setObjectsSent(ci);
-				database.put(study);
+				synchronized (getStudyLock(study.getStudyUID())) {
+					study.setDestinationObjectsSent(e.getHash(), offset + ci);
+					if (database.get(study.getStudyUID()) == study) database.put(study);
+				}
 			}
 		}
 
-		private void makeAuditLogEntry(XDSStudy study) {
+		private void makeAuditLogEntry(XDSStudy study, String key) {
 			auditLog = (AuditLog)Configuration.getInstance().getRegisteredPlugin(auditLogID);
 			if (auditLog != null) {
 				String entry;
@@ -363,8 +1715,8 @@ public class XDSStudyCache {
 					Document doc = XmlUtil.getDocument();
 					Element root = doc.createElement("XDSStudyCache");
 					root.setAttribute("Action", "send");
-					root.setAttribute("Destination", study.getDestination());
-					root.setAttribute("DestinationName", study.getDestinationName());
+					root.setAttribute("Destination", key);
+					root.setAttribute("DestinationName", study.getDestinationName(key));
 					Document xml = study.getXML();
 					Element studyElement = (Element)doc.importNode(xml.getDocumentElement(), true);
 					root.appendChild(studyElement);
@@ -0,0 +1,234 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.isn.ctp.xds.sender;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A compact binary encoding of XDSStudy database entries.
+ * <p>
+ * A record starts with a marker byte and a version byte, followed by
+ * the fields of the study. The object filenames, which are generally
+ * SOPInstanceUIDs sharing a long root, are stored as the length of the
+ * prefix shared with the previous filename followed by the remainder.
+ * On decoding, the status is mapped to its canonical XDSStudyStatus
+ * instance and the values that repeat across studies (modality,
+ * body part, and destination) are interned. Version 2 records add the
+ * state of the transmission to each destination, and version 3 records
+ * add the number of bytes in the cache. Version 4 records store the name of
+ * the study's directory, which is resolved through the CacheLayout, in place
+ * of its absolute path. Version 5 records add the number of objects rejected
+ * at ingest and the reason for the last rejection, and version 6 records add
+ * the state of each series of a study that is being streamed. Older records
+ * are still decoded.
+ * <p>
+ * Records written with Java serialization before this encoding was
+ * introduced are recognized by their stream header and still decoded.
+ */
+public class XDSStudyCodec {
+
+	//The first byte of a record. Java serialization streams
+	//start with 0xACED, so the two cannot be confused.
+	private static final int MARKER = 0x58;
+
+	private static final int VERSION = 6;
+
+	private XDSStudyCodec() { }
+
+	/**
+	 * Encode a study.
+	 * @param study the study.
+	 * @return the encoded record.
+	 */
+	public static byte[] encode(XDSStudy study) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(baos);
+		synchronized (study) {
+			out.writeByte(MARKER);
+			out.writeByte(VERSION);
+			writeString(out, study.studyUID);
+			writeString(out, study.dirname);
+			out.writeInt(study.size);
+			out.writeInt(study.objectsSent);
+			out.writeLong(study.lastModifiedTime);
+			writeString(out, (study.status != null) ? study.status.toString() : null);
+			writeString(out, study.destination);
+			writeString(out, study.destinationName);
+			writeString(out, study.patientID);
+			writeString(out, study.patientName);
+			writeString(out, study.studyDate);
+			writeString(out, study.modality);
+			writeString(out, study.bodypart);
+			writeString(out, study.studyDescription);
+			if (study.objects == null) out.writeInt(-1);
+			else {
+				out.writeInt(study.objects.size());
+				writeFilenames(out, study.objects);
+			}
+			if (study.transmissions == null) out.writeInt(-1);
+			else {
+				out.writeInt(study.transmissions.size());
+				for (XDSStudy.Transmission t : study.transmissions.values()) {
+					writeString(out, t.key);
+					writeString(out, t.name);
+					writeString(out, t.status.toString());
+					out.writeInt(t.objectsSent);
+				}
+			}
+			out.writeLong(study.bytes);
+			out.writeInt(study.rejected);
+			writeString(out, study.rejection);
+			if (study.series == null) out.writeInt(-1);
+			else {
+				out.writeInt(study.series.size());
+				for (XDSStudy.Series s : study.series.values()) {
+					writeString(out, s.seriesUID);
+					out.writeInt(s.size);
+					out.writeInt(s.objectsSent);
+					out.writeLong(s.lastModifiedTime);
+					writeString(out, s.status.toString());
+					out.writeInt(s.pending.size());
+					writeFilenames(out, s.pending);
+				}
+			}
+		}
+		out.close();
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Decode a study, in either the binary encoding or Java serialization.
+	 * @param bytes the record.
+	 * @return the study.
+	 */
+	public static XDSStudy decode(byte[] bytes) throws IOException {
+		if ((bytes.length > 0) && ((bytes[0] & 0xff) != MARKER)) {
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+			try { return (XDSStudy)in.readObject(); }
+			catch (ClassNotFoundException ex) { throw new IOException(ex.getMessage()); }
+			finally { in.close(); }
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		in.readUnsignedByte();
+		int version = in.readUnsignedByte();
+		if ((version < 1) || (version > VERSION)) {
+			throw new IOException("Unsupported XDSStudy record version " + version);
+		}
+		XDSStudy study = new XDSStudy();
+		study.studyUID = readString(in);
+		String dir = readString(in);
+		if ((version < 4) && (dir != null)) dir = new File(dir).getName();
+		study.dirname = dir;
+		study.size = in.readInt();
+		study.objectsSent = in.readInt();
+		study.lastModifiedTime = in.readLong();
+		String status = readString(in);
+		study.status = (status != null) ? XDSStudyStatus.forName(status) : null;
+		study.destination = intern(readString(in));
+		study.destinationName = intern(readString(in));
+		study.patientID = readString(in);
+		study.patientName = readString(in);
+		study.studyDate = readString(in);
+		study.modality = intern(readString(in));
+		study.bodypart = intern(readString(in));
+		study.studyDescription = readString(in);
+		int n = in.readInt();
+		if (n < 0) study.objects = null;
+		else {
+			study.objects = new LinkedHashSet<String>(Math.max(16, n * 4 / 3 + 1));
+			readFilenames(in, study.objects, n);
+		}
+		if (version >= 2) {
+			n = in.readInt();
+			if (n >= 0) {
+				study.transmissions = new LinkedHashMap<String,XDSStudy.Transmission>();
+				for (int i=0; i<n; i++) {
+					String key = intern(readString(in));
+					String name = intern(readString(in));
+					XDSStudy.Transmission t = new XDSStudy.Transmission(key, name);
+					t.status = XDSStudyStatus.forName(readString(in));
+					t.objectsSent = in.readInt();
+					study.transmissions.put(t.key, t);
+				}
+			}
+		}
+		if (version >= 3) study.bytes = in.readLong();
+		if (version >= 5) {
+			study.rejected = in.readInt();
+			study.rejection = readString(in);
+		}
+		if (version >= 6) {
+			n = in.readInt();
+			if (n >= 0) {
+				study.series = new LinkedHashMap<String,XDSStudy.Series>();
+				for (int i=0; i<n; i++) {
+					XDSStudy.Series s = new XDSStudy.Series(readString(in));
+					s.size = in.readInt();
+					s.objectsSent = in.readInt();
+					s.lastModifiedTime = in.readLong();
+					s.status = XDSStudyStatus.forName(readString(in));
+					readFilenames(in, s.pending, in.readInt());
+					study.series.put(s.seriesUID, s);
+				}
+			}
+		}
+		return study;
+	}
+
+	//Write a set of filenames, each as the length of the prefix it
+	//shares with the previous filename followed by the remainder.
+	private static void writeFilenames(DataOutputStream out, Set<String> filenames) throws IOException {
+		String previous = "";
+		for (String filename : filenames) {
+			int prefix = sharedPrefix(previous, filename);
+			out.writeShort(prefix);
+			out.writeUTF(filename.substring(prefix));
+			previous = filename;
+		}
+	}
+
+	private static void readFilenames(DataInputStream in, Set<String> filenames, int n) throws IOException {
+		String previous = "";
+		for (int i=0; i<n; i++) {
+			int prefix = in.readUnsignedShort();
+			String filename = previous.substring(0, prefix) + in.readUTF();
+			filenames.add(filename);
+			previous = filename;
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) out.writeUTF(s);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static String intern(String s) {
+		return (s != null) ? s.intern() : null;
+	}
+
+	private static int sharedPrefix(String s1, String s2) {
+		int n = Math.min(Math.min(s1.length(), s2.length()), 0xffff);
+		int i = 0;
+		while ((i < n) && (s1.charAt(i) == s2.charAt(i))) i++;
+		return i;
+	}
+
+}
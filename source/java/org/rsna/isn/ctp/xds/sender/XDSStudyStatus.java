@@ -82,6 +82,11 @@ public class XDSStudyStatus implements Serializable {
 		return UNDEFINED;
 	}
 
+	//Replace a deserialized instance with the canonical one.
+	private Object readResolve() {
+		return forName(status);
+	}
+
 	/**
 	 * See if a status matches a specified status.
 	 */
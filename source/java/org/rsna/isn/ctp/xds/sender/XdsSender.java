@@ -29,13 +29,17 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import org.apache.commons.lang.math.NumberUtils;
 import org.apache.log4j.Logger;
+import org.dcm4che2.data.DicomObject;
 import org.rsna.ctp.pipeline.Status;
 import org.rsna.isn.ctp.xds.sender.dicom.DicomStudy;
 import org.rsna.isn.ctp.xds.sender.dicom.KosGenerator;
 import org.rsna.isn.ctp.xds.sender.event.XdsSubmissionListener;
+import org.rsna.isn.ctp.xds.sender.ihe.DocumentCache;
 import org.rsna.isn.ctp.xds.sender.ihe.Iti41;
 import org.rsna.isn.ctp.xds.sender.ihe.Iti8;
 import org.w3c.dom.Element;
@@ -63,6 +67,8 @@ public class XdsSender
 
 	private final long timeout;
 
+	private final long sendBufferSize;
+
 	/**
 	 * Create an XdsSender instance
 	 *
@@ -78,6 +84,7 @@ public class XdsSender
 		this.iti41 = new URI(element.getAttribute("iti41"));
 		this.iti41SrcId = element.getAttribute("iti41SrcId");
 		this.timeout = NumberUtils.toLong(element.getAttribute("timeout"), 1000);
+		this.sendBufferSize = NumberUtils.toLong(element.getAttribute("sendBufferSize"), 64) * 1024 * 1024;
 
 		logger.debug("XdsSender instantiated");
 	}
@@ -105,14 +112,57 @@ public class XdsSender
 	 */
 	public Status submit(List<File> files, String hash)
 	{
-		logger.debug("submit request for "+files.size()+" files. Key = "+hash);
+		return submit(files, null, hash);
+	}
 
-		Collection<DicomStudy> studies;
+	/**
+	 * Perform the XDS submission to the clearinghouse, taking the header
+	 * attributes of the files from a study manifest where possible.
+	 *
+	 * @param files A list of DICOM part 10 files to be submitted.
+	 * @param manifest A map from file name to the header attributes recorded
+	 * when the file was stored, or null if no manifest is available.
+	 * @param hash The hash to associate with the submission.
+	 * @return The status of the submission request.
+	 */
+	public Status submit(List<File> files, Map<String, DicomObject> manifest, String hash)
+	{
+		List<String> hashes = new ArrayList<String>();
+		hashes.add(hash);
+		return submit(files, manifest, hashes).get(hash);
+	}
+
+	/**
+	 * Perform the XDS submission of one set of files to several destinations.
+	 * The headers are read and the KOS is generated once; the submissions to
+	 * the destinations then run one after another in the calling thread, so a
+	 * transmission occupies exactly the one send thread that the SendScheduler
+	 * allotted to it. The Iti41Events of each submission carry its hash, so
+	 * listeners can track the progress of each destination.
+	 * <p>
+	 * The files are read through a DocumentCache, so the files read for the
+	 * first destination are not read again for the others, up to the
+	 * sendBufferSize (in MB) of the stage. The files that do not fit are read
+	 * once per destination, as are all the files if the sendBufferSize is 0.
+	 *
+	 * @param files A list of DICOM part 10 files to be submitted.
+	 * @param manifest A map from file name to the header attributes recorded
+	 * when the file was stored, or null if no manifest is available.
+	 * @param hashes The hashes (destination keys) to which the files are to
+	 * be submitted.
+	 * @return A map from each hash to the status of its submission.
+	 */
+	public Map<String, Status> submit(List<File> files, Map<String, DicomObject> manifest,
+			List<String> hashes)
+	{
+		logger.debug("submit request for "+files.size()+" files. Keys = "+hashes);
 
+		Map<String, Status> results = new LinkedHashMap<String, Status>();
 
+		Collection<DicomStudy> studies;
 		try
 		{
-			studies = KosGenerator.processFiles(files, listenerList);
+			studies = KosGenerator.processFiles(files, manifest, listenerList);
 
 			logger.debug("KosGenerator completed processing the files");
 		}
@@ -120,10 +170,93 @@ public class XdsSender
 		{
 			logger.warn("Failed to generate KOS.", ex);
 
+			for (String hash : hashes)
+				results.put(hash, Status.FAIL);
+
+			return results;
+		}
+
+		int total = files.size();
+		DocumentCache contents = ((hashes.size() > 1) && (sendBufferSize > 0)) ? new DocumentCache(sendBufferSize) : null;
+		for (String hash : hashes)
+		{
+			if (Thread.currentThread().isInterrupted())
+			{
+				logger.warn("Interrupted before the submission to " + hash);
+
+				results.put(hash, Status.RETRY);
+			}
+			else
+				results.put(hash, submit(studies, hash, total, true, true, contents));
+		}
+
+		return results;
+	}
+
+	/**
+	 * Submit the objects of one series (or any part of a study) to one
+	 * destination as a submission set of their own, without a KOS. This
+	 * is used to stream a study as its series are completed; the KOS is
+	 * then submitted by submitKos when the whole study is complete.
+	 *
+	 * @param files A list of DICOM part 10 files to be submitted.
+	 * @param manifest A map from file name to the header attributes recorded
+	 * when the file was stored, or null if no manifest is available.
+	 * @param hash The hash to associate with the submission.
+	 * @return The status of the submission request.
+	 */
+	public Status submitObjects(List<File> files, Map<String, DicomObject> manifest, String hash)
+	{
+		logger.debug("submit request for "+files.size()+" files without a KOS. Key = "+hash);
+
+		return submit(files, manifest, hash, false, true);
+	}
+
+	/**
+	 * Submit the KOS of a study to one destination as a submission set of
+	 * its own, without the objects it references. The KOS is built from the
+	 * complete list of the study's files, which are only read if they have
+	 * no record in the manifest.
+	 *
+	 * @param files A list of all the DICOM part 10 files of the study.
+	 * @param manifest A map from file name to the header attributes recorded
+	 * when the file was stored, or null if no manifest is available.
+	 * @param hash The hash to associate with the submission.
+	 * @return The status of the submission request.
+	 */
+	public Status submitKos(List<File> files, Map<String, DicomObject> manifest, String hash)
+	{
+		logger.debug("submit request for the KOS of "+files.size()+" files. Key = "+hash);
+
+		return submit(files, manifest, hash, true, false);
+	}
+
+	private Status submit(List<File> files, Map<String, DicomObject> manifest, String hash,
+			boolean includeKos, boolean includeObjects)
+	{
+		Collection<DicomStudy> studies;
+		try
+		{
+			studies = KosGenerator.processFiles(files, manifest, listenerList);
+		}
+		catch (Throwable ex)
+		{
+			logger.warn("Failed to generate KOS.", ex);
+
 			return Status.FAIL;
 		}
 
+		return submit(studies, hash, files.size(), includeKos, includeObjects, null);
+	}
 
+	/**
+	 * Register the patient and submit the documents of a set of studies
+	 * to one destination, reading the files through a DocumentCache
+	 * if one is supplied.
+	 */
+	private Status submit(Collection<DicomStudy> studies, String hash, int total,
+			boolean includeKos, boolean includeObjects, DocumentCache contents)
+	{
 		try
 		{
 			Iti8.registerPatient(hash, iti8Pix, iti8Reg, listenerList);
@@ -137,15 +270,14 @@ public class XdsSender
 
 
 		int currentIndex = 0;
-		int total = files.size();
 		for (DicomStudy study : studies)
 		{
 			try
 			{
 				logger.debug("submitting the documents");
 
-				currentIndex += Iti41.submitDocuments(study, hash, iti41, iti41SrcId,
-						timeout, listenerList, currentIndex, total);
+				currentIndex = Iti41.submitDocuments(study, hash, iti41, iti41SrcId,
+						timeout, listenerList, currentIndex, total, includeKos, includeObjects, contents);
 
 				logger.debug("finished submitting the documents");
 			}
@@ -124,4 +124,48 @@ public class DicomObject
 		this.file = file;
 	}
 
+	private String hash;
+
+	/**
+	 * Get the hex SHA-1 digest of the file, computed when the file was cached
+	 *
+	 * @return the digest, or null if it is not known
+	 */
+	public String getHash()
+	{
+		return hash;
+	}
+
+	/**
+	 * Set the value of hash
+	 *
+	 * @param hash the hex SHA-1 digest of the file
+	 */
+	public void setHash(String hash)
+	{
+		this.hash = hash;
+	}
+
+	private long size = -1;
+
+	/**
+	 * Get the size of the file, recorded when the file was cached
+	 *
+	 * @return the size in bytes, or -1 if it is not known
+	 */
+	public long getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * Set the value of size
+	 *
+	 * @param size the size of the file in bytes
+	 */
+	public void setSize(long size)
+	{
+		this.size = size;
+	}
+
 }
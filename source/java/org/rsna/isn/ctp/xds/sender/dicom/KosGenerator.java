@@ -40,6 +40,7 @@ import org.dcm4che2.data.VR;
 import org.dcm4che2.io.DicomInputStream;
 import org.dcm4che2.io.StopTagInputHandler;
 import org.dcm4che2.util.UIDUtils;
+import org.rsna.isn.ctp.xds.sender.MemoryTier;
 import org.rsna.isn.ctp.xds.sender.event.KosEvent;
 import org.rsna.isn.ctp.xds.sender.event.XdsSubmissionListener;
 
@@ -69,6 +70,28 @@ public class KosGenerator
 	 */
 	public static Collection<DicomStudy> processFiles(List<File> files, 
 			List<XdsSubmissionListener> listeners) throws IOException
+	{
+		return processFiles(files, null, listeners);
+	}
+
+	/**
+	 * Generate the KOS object(s) for a list of studies, taking the header
+	 * attributes from a study manifest where possible. Files that have no
+	 * record in the manifest are parsed.
+	 * 
+	 * @param files A list of files to process
+	 * @param manifest A map from file name to the header attributes recorded
+	 * when the file was stored (see StudyManifest), or null if no manifest
+	 * is available.
+	 * @param listeners A list of listeners to be notified of events.
+	 * @return A collection of DicomStudy objects. Each DicomStudy object 
+	 * contains the KOS of the associated objects.
+	 * 
+	 * @throws IOException If there was an exception processing the files. 
+	 */
+	public static Collection<DicomStudy> processFiles(List<File> files, 
+			Map<String, DicomObject> manifest,
+			List<XdsSubmissionListener> listeners) throws IOException
 	{
 		StopTagInputHandler stop = new StopTagInputHandler(Tag.PixelData);
 
@@ -80,21 +103,31 @@ public class KosGenerator
 			for (int i = 0; i < files.size(); i++)
 			{
 				File srcFile = files.get(i);
-				in = new DicomInputStream(srcFile);
-				in.setHandler(stop);
+
+				DicomObject header = (manifest != null) ? manifest.get(srcFile.getName()) : null;
+				String transferSyntaxUid;
+				if (header != null)
+				{
+					transferSyntaxUid = header.getString(Tag.TransferSyntaxUID);
+				}
+				else
+				{
+					in = new DicomInputStream(MemoryTier.open(srcFile));
+					in.setHandler(stop);
 
 
 
-				DicomObject fmi = in.readFileMetaInformation();
-				if (fmi == null)
-					throw new IOException(srcFile + " is not a DICOM part-10 file");
+					DicomObject fmi = in.readFileMetaInformation();
+					if (fmi == null)
+						throw new IOException(srcFile + " is not a DICOM part-10 file");
 
-				DicomObject header = in.readDicomObject();
+					header = in.readDicomObject();
 
-				String transferSyntaxUid = in.getTransferSyntax().uid();
+					transferSyntaxUid = in.getTransferSyntax().uid();
 
-				in.close();
-				in = null;
+					in.close();
+					in = null;
+				}
 
 				String studyUid = header.getString(Tag.StudyInstanceUID);
 				String seriesUid = header.getString(Tag.SeriesInstanceUID);
@@ -143,6 +176,11 @@ public class KosGenerator
 				obj.setSopInstanceUid(sopInstanceUid);
 				obj.setTransferSyntaxUid(transferSyntaxUid);
 				obj.setFile(srcFile);
+				if (header.contains(StudyManifest.DIGEST))
+				{
+					obj.setHash(header.getString(StudyManifest.DIGEST));
+					obj.setSize(Long.parseLong(header.getString(StudyManifest.SIZE, "-1")));
+				}
 
 				series.getObjects().put(sopInstanceUid, obj);
 
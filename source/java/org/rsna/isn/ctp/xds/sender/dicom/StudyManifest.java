@@ -0,0 +1,254 @@
+/* Copyright (c) <2010>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.ctp.xds.sender.dicom;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.VR;
+import org.dcm4che2.data.VRMap;
+
+/**
+ * An append-only file of the header attributes of the objects in a cached
+ * study. A record is appended for each object as it is stored, so that the
+ * KOS and the ITI-41 metadata can be built without re-reading the image files.
+ * When an object is replaced, a new record is appended and the last record
+ * for a file wins.
+ * <p>
+ * Version 2 records also hold the SHA-1 digest and the size of the object's
+ * file, computed while the file was stored. They are returned in the header
+ * of the object under the DIGEST and SIZE keys, which are private tags that
+ * are only used within the sender and never written to a DICOM object.
+ */
+public class StudyManifest
+{
+	private static final Logger logger = Logger.getLogger(StudyManifest.class);
+
+	/**
+	 * The name of the manifest file in a study directory.
+	 */
+	public static final String FILENAME = ".manifest";
+
+	private static final int VERSION = 2;
+
+	/**
+	 * The key of the hex SHA-1 digest of an object's file in its header.
+	 */
+	public static final int DIGEST = 0x00091010;
+
+	/**
+	 * The key of the size in bytes of an object's file in its header.
+	 */
+	public static final int SIZE = 0x00091011;
+
+	/**
+	 * The attributes recorded for each object. These are the attributes that
+	 * KosGenerator reads from the headers.
+	 */
+	public static final int[] TAGS =
+	{
+		Tag.TransferSyntaxUID,
+		Tag.PatientName,
+		Tag.PatientID,
+		Tag.PatientSex,
+		Tag.PatientBirthDate,
+		Tag.AccessionNumber,
+		Tag.StudyInstanceUID,
+		Tag.StudyDescription,
+		Tag.StudyDate,
+		Tag.StudyTime,
+		Tag.StudyID,
+		Tag.ReferringPhysicianName,
+		Tag.SeriesInstanceUID,
+		Tag.SeriesDescription,
+		Tag.Modality,
+		Tag.SOPInstanceUID,
+		Tag.SOPClassUID
+	};
+
+	private StudyManifest()
+	{
+	}
+
+	/**
+	 * Get the manifest file of a study directory.
+	 *
+	 * @param studyDir The directory containing the study's objects.
+	 * @return The manifest file, which may not exist.
+	 */
+	public static File getFile(File studyDir)
+	{
+		return new File(studyDir, FILENAME);
+	}
+
+	/**
+	 * Append a record for an object to the manifest of a study.
+	 *
+	 * @param studyDir The directory containing the study's objects.
+	 * @param filename The name of the object's file in the study directory.
+	 * @param values The values of the attributes in TAGS, in the same order.
+	 * Null values are omitted.
+	 * @throws IOException If the record could not be written.
+	 */
+	public static void append(File studyDir, String filename, String[] values)
+			throws IOException
+	{
+		append(studyDir, filename, values, null, -1);
+	}
+
+	/**
+	 * Append a record for an object to the manifest of a study.
+	 *
+	 * @param studyDir The directory containing the study's objects.
+	 * @param filename The name of the object's file in the study directory.
+	 * @param values The values of the attributes in TAGS, in the same order.
+	 * Null values are omitted.
+	 * @param digest The hex SHA-1 digest of the object's file, or null if it
+	 * is not known.
+	 * @param size The size of the object's file in bytes, or -1 if it is not
+	 * known.
+	 * @throws IOException If the record could not be written.
+	 */
+	public static void append(File studyDir, String filename, String[] values,
+			String digest, long size) throws IOException
+	{
+		DataOutputStream out = null;
+		try
+		{
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(getFile(studyDir), true)));
+
+			int n = 0;
+			for (String value : values)
+			{
+				if (value != null)
+					n++;
+			}
+
+			out.writeByte(VERSION);
+			out.writeUTF(filename);
+			out.writeUTF((digest != null) ? digest : "");
+			out.writeLong(size);
+			out.writeShort(n);
+			for (int i = 0; i < values.length; i++)
+			{
+				if (values[i] != null)
+				{
+					out.writeInt(TAGS[i]);
+					out.writeUTF(values[i]);
+				}
+			}
+			out.close();
+			out = null;
+		}
+		finally
+		{
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	/**
+	 * Read the manifest of a study.
+	 *
+	 * @param studyDir The directory containing the study's objects.
+	 * @return A map from the name of each object's file to a DicomObject
+	 * containing the recorded attributes, or null if the study has no manifest.
+	 * A record truncated by a crash while it was being written is ignored.
+	 */
+	public static Map<String, DicomObject> read(File studyDir)
+	{
+		File file = getFile(studyDir);
+		if (!file.exists())
+			return null;
+
+		Map<String, DicomObject> manifest = new HashMap<String, DicomObject>();
+		VRMap vrMap = VRMap.getVRMap();
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			while (true)
+			{
+				int version;
+				try
+				{
+					version = in.readUnsignedByte();
+				}
+				catch (EOFException endOfManifest)
+				{
+					break;
+				}
+				if ((version != 1) && (version != VERSION))
+					throw new IOException("Unsupported manifest record version " + version);
+
+				String filename = in.readUTF();
+				DicomObject header = new BasicDicomObject();
+				if (version >= 2)
+				{
+					String digest = in.readUTF();
+					long size = in.readLong();
+					if (digest.length() > 0)
+						header.putString(DIGEST, VR.LO, digest);
+					if (size >= 0)
+						header.putString(SIZE, VR.LO, Long.toString(size));
+				}
+				int n = in.readUnsignedShort();
+				for (int i = 0; i < n; i++)
+				{
+					int tag = in.readInt();
+					header.putString(tag, vrMap.vrOf(tag), in.readUTF());
+				}
+				manifest.put(filename, header);
+			}
+		}
+		catch (EOFException truncated)
+		{
+			logger.warn("Ignoring a truncated record at the end of " + file);
+		}
+		catch (IOException ex)
+		{
+			logger.warn("Unable to read the manifest " + file, ex);
+			return null;
+		}
+		finally
+		{
+			IOUtils.closeQuietly(in);
+		}
+		return manifest;
+	}
+
+}
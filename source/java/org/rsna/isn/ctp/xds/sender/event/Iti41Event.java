@@ -44,10 +44,38 @@ public class Iti41Event implements XdsSubmissionEvent
 	 * @param totalImages The total number of file being processed. 
 	 */
 	public Iti41Event(File file, int currentImage, int totalImages)
+	{
+		this(file, currentImage, totalImages, null);
+	}
+
+	/**
+	 * Create an instance of an Iti41Event for a submission to one of
+	 * several destinations.
+	 *
+	 * @param file The file associated with this event.
+	 * @param currentImage The one based index of the file within the list of files
+	 * being processed.
+	 * @param totalImages The total number of file being processed.
+	 * @param hash The hash (destination key) of the submission.
+	 */
+	public Iti41Event(File file, int currentImage, int totalImages, String hash)
 	{
 		this.file = file;
 		this.currentImage = currentImage;
 		this.totalImages = totalImages;
+		this.hash = hash;
+	}
+
+	private final String hash;
+
+	/**
+	 * Get the hash (destination key) of the submission
+	 *
+	 * @return the hash, or null if it was not specified
+	 */
+	public String getHash()
+	{
+		return hash;
 	}
 	
 	
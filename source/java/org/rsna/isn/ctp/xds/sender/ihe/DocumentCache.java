@@ -0,0 +1,87 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.isn.ctp.xds.sender.ihe;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import org.apache.commons.io.IOUtils;
+import org.rsna.isn.ctp.xds.sender.MemoryTier;
+
+/**
+ * The contents of the documents of a transmission to several destinations.
+ * <p>
+ * The submission to the first destination reads each file and keeps its
+ * contents, as long as the total stays within the budget, so the submissions
+ * to the other destinations do not read the files again. The files that do
+ * not fit are read by every submission. An instance is used by one
+ * transmission and discarded when it finishes.
+ */
+public class DocumentCache
+{
+	private final long budget;
+
+	private long used = 0;
+
+	private final HashMap<File, byte[]> contents = new HashMap<File, byte[]>();
+
+	/**
+	 * Create a DocumentCache.
+	 *
+	 * @param budget The maximum number of bytes of file contents to keep.
+	 */
+	public DocumentCache(long budget)
+	{
+		this.budget = budget;
+	}
+
+	/**
+	 * Open a file, from the cache if its contents have been kept, and
+	 * otherwise from the memory tier or the disk, keeping the contents
+	 * if they fit within the budget.
+	 *
+	 * @param file The file to open.
+	 * @return A stream from which the contents of the file can be read.
+	 * @throws IOException If the file could not be read.
+	 */
+	public synchronized InputStream open(File file) throws IOException
+	{
+		byte[] data = contents.get(file);
+		if (data != null)
+			return new ByteArrayInputStream(data);
+
+		long length = file.length();
+		if (!file.isFile() || (used + length > budget))
+			return MemoryTier.open(file);
+
+		InputStream in = MemoryTier.open(file);
+		try
+		{
+			data = IOUtils.toByteArray(in);
+		}
+		finally
+		{
+			IOUtils.closeQuietly(in);
+		}
+		contents.put(file, data);
+		used += data.length;
+
+		return new ByteArrayInputStream(data);
+	}
+
+	/**
+	 * Get the number of bytes of file contents kept.
+	 */
+	public synchronized long getUsedBytes()
+	{
+		return used;
+	}
+
+}
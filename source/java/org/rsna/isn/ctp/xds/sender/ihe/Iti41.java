@@ -101,59 +101,145 @@ public class Iti41
 	 * @param total The total number of files that are going to be submitted.
 	 * This parameter is used in the Iti41Event for notifying listeners
 	 * of submission progress.
-	 * @return The total number of files submitted in this transaction.
+	 * @return currentIndex plus the number of DICOM objects submitted in this
+	 * transaction, which is the index of the next object to be submitted. The
+	 * KOS is not counted.
 	 * @throws Exception If there was an error processing the submission set.
 	 */
 	public static int submitDocuments(DicomStudy study, String hash,
 			URI endpoint, String sourceId, long timeout,
 			List<XdsSubmissionListener> listeners, int currentIndex, int total) throws Exception
 	{
-		SubmitTransactionData tx = new SubmitTransactionData();
-		XdsDocumentInitializer initializer = new XdsDocumentInitializer(study, hash);
-
-		// Add entry for KOS
-		XDSDocument kosDoc =
-				new XDSDocumentFromByteArray(KOS_DESCRIPTOR, study.getKos());
-		String kosUuid = tx.addDocument(kosDoc);
-		DocumentEntryType kosEntry = tx.getDocumentEntry(kosUuid);
-		initializer.initDocEntry(kosEntry);
+		return submitDocuments(study, hash, endpoint, sourceId, timeout,
+				listeners, currentIndex, total, true, true);
+	}
 
-		CodedMetadataType kosFmt = xdsFactory.createCodedMetadataType();
-		kosFmt.setCode(UID.KeyObjectSelectionDocumentStorage);
-		kosFmt.setDisplayName(XdsUtil.toInternationalString(UID.KeyObjectSelectionDocumentStorage));
-		kosFmt.setSchemeName(DICOM_UID_REG_UID);
-		kosFmt.setSchemeUUID(DICOM_UID_REG_UID);
-		kosEntry.setFormatCode(kosFmt);
+	/**
+	 * Perform a submission to the document repository that contains the KOS,
+	 * the objects of the study, or both. Streaming senders submit each series
+	 * without a KOS as soon as it is complete, and then submit the KOS of the
+	 * whole study by itself.
+	 *
+	 * @param study The study to be submitted.
+	 * @param hash The hash to assign to the submission.
+	 * @param endpoint The URL of the remote endpoint for the ITI-41 transaction.
+	 * @param sourceId The source id to be used in the ITI-41 transaction.
+	 * @param timeout The timeout (in milliseconds) to be used for the ITI-41
+	 * transaction.
+	 * @param listeners A list of listeners to be notified of events during the
+	 * ITI-41 transaction.
+	 * @param currentIndex The current zero based index of the first file within
+	 * the study.
+	 * @param total The total number of files that are going to be submitted.
+	 * @param includeKos true if the KOS is to be submitted.
+	 * @param includeObjects true if the objects are to be submitted.
+	 * @return currentIndex plus the number of DICOM objects submitted in this
+	 * transaction, which is the index of the next object to be submitted. The
+	 * KOS is not counted, so if includeObjects is false, currentIndex is
+	 * returned unchanged.
+	 * @throws Exception If there was an error processing the submission set.
+	 */
+	public static int submitDocuments(DicomStudy study, String hash,
+			URI endpoint, String sourceId, long timeout,
+			List<XdsSubmissionListener> listeners, int currentIndex, int total,
+			boolean includeKos, boolean includeObjects) throws Exception
+	{
+		return submitDocuments(study, hash, endpoint, sourceId, timeout,
+				listeners, currentIndex, total, includeKos, includeObjects, null);
+	}
 
-		kosEntry.setMimeType(KOS_DESCRIPTOR.getMimeType());
+	/**
+	 * Perform a submission to the document repository, reading the objects
+	 * through the DocumentCache of a transmission to several destinations,
+	 * so the objects read for one destination are not read again for the
+	 * others.
+	 *
+	 * @param study The study to be submitted.
+	 * @param hash The hash to assign to the submission.
+	 * @param endpoint The URL of the remote endpoint for the ITI-41 transaction.
+	 * @param sourceId The source id to be used in the ITI-41 transaction.
+	 * @param timeout The timeout (in milliseconds) to be used for the ITI-41
+	 * transaction.
+	 * @param listeners A list of listeners to be notified of events during the
+	 * ITI-41 transaction.
+	 * @param currentIndex The current zero based index of the first file within
+	 * the study.
+	 * @param total The total number of files that are going to be submitted.
+	 * @param includeKos true if the KOS is to be submitted.
+	 * @param includeObjects true if the objects are to be submitted.
+	 * @param contents The DocumentCache of the transmission, or null if the
+	 * objects are to be read directly.
+	 * @return currentIndex plus the number of DICOM objects submitted in this
+	 * transaction, which is the index of the next object to be submitted. The
+	 * KOS is not counted, so if includeObjects is false, currentIndex is
+	 * returned unchanged.
+	 * @throws Exception If there was an error processing the submission set.
+	 */
+	public static int submitDocuments(DicomStudy study, String hash,
+			URI endpoint, String sourceId, long timeout,
+			List<XdsSubmissionListener> listeners, int currentIndex, int total,
+			boolean includeKos, boolean includeObjects, DocumentCache contents) throws Exception
+	{
+		SubmitTransactionData tx = new SubmitTransactionData();
+		XdsDocumentInitializer initializer = new XdsDocumentInitializer(study, hash);
 
-		kosEntry.setUniqueId(study.getKosSopInstanceUid());
+		if (includeKos)
+		{
+			// Add entry for KOS
+			XDSDocument kosDoc =
+					new XDSDocumentFromByteArray(KOS_DESCRIPTOR, study.getKos());
+			String kosUuid = tx.addDocument(kosDoc);
+			DocumentEntryType kosEntry = tx.getDocumentEntry(kosUuid);
+			initializer.initDocEntry(kosEntry);
+
+			CodedMetadataType kosFmt = xdsFactory.createCodedMetadataType();
+			kosFmt.setCode(UID.KeyObjectSelectionDocumentStorage);
+			kosFmt.setDisplayName(XdsUtil.toInternationalString(UID.KeyObjectSelectionDocumentStorage));
+			kosFmt.setSchemeName(DICOM_UID_REG_UID);
+			kosFmt.setSchemeUUID(DICOM_UID_REG_UID);
+			kosEntry.setFormatCode(kosFmt);
+
+			kosEntry.setMimeType(KOS_DESCRIPTOR.getMimeType());
+
+			kosEntry.setUniqueId(study.getKosSopInstanceUid());
+		}
 
 		// Add entries for images
-		for (DicomSeries series : study.getSeries().values())
+		if (includeObjects)
 		{
-			for (DicomObject object : series.getObjects().values())
+			for (DicomSeries series : study.getSeries().values())
 			{
-				File dcmFile = object.getFile();
-
-				XDSDocument dcmDoc = new LazyLoadedXdsDocument(DocumentDescriptor.DICOM,
-						dcmFile, listeners, currentIndex++, total);
-
-				String dcmUuid = tx.addDocument(dcmDoc);
-				DocumentEntryType dcmEntry = tx.getDocumentEntry(dcmUuid);
-				initializer.initDocEntry(dcmEntry);
-
-				CodedMetadataType dcmFmt = xdsFactory.createCodedMetadataType();
-				String sopClass = object.getSopClassUid();
-				dcmFmt.setCode(sopClass);
-				dcmFmt.setDisplayName(XdsUtil.toInternationalString(sopClass));
-				dcmFmt.setSchemeName(DICOM_UID_REG_UID);
-				dcmFmt.setSchemeUUID(DICOM_UID_REG_UID);
-				dcmEntry.setFormatCode(dcmFmt);
-
-				dcmEntry.setMimeType(DocumentDescriptor.DICOM.getMimeType());
-
-				dcmEntry.setUniqueId(object.getSopInstanceUid());
+				for (DicomObject object : series.getObjects().values())
+				{
+					File dcmFile = object.getFile();
+
+					XDSDocument dcmDoc = new LazyLoadedXdsDocument(DocumentDescriptor.DICOM,
+							dcmFile, listeners, currentIndex++, total, hash, contents);
+
+					String dcmUuid = tx.addDocument(dcmDoc);
+					DocumentEntryType dcmEntry = tx.getDocumentEntry(dcmUuid);
+					initializer.initDocEntry(dcmEntry);
+
+					CodedMetadataType dcmFmt = xdsFactory.createCodedMetadataType();
+					String sopClass = object.getSopClassUid();
+					dcmFmt.setCode(sopClass);
+					dcmFmt.setDisplayName(XdsUtil.toInternationalString(sopClass));
+					dcmFmt.setSchemeName(DICOM_UID_REG_UID);
+					dcmFmt.setSchemeUUID(DICOM_UID_REG_UID);
+					dcmEntry.setFormatCode(dcmFmt);
+
+					dcmEntry.setMimeType(DocumentDescriptor.DICOM.getMimeType());
+
+					dcmEntry.setUniqueId(object.getSopInstanceUid());
+
+					// Use the digest and size computed when the object was cached,
+					// so the file is only read for the upload.
+					if ((object.getHash() != null) && (object.getSize() >= 0))
+					{
+						dcmEntry.setHash(object.getHash());
+						dcmEntry.setSize(Long.toString(object.getSize()));
+					}
+				}
 			}
 		}
 
@@ -24,19 +24,21 @@
 package org.rsna.isn.ctp.xds.sender.ihe;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
 import org.apache.commons.io.input.AutoCloseInputStream;
 import org.openhealthtools.ihe.xds.document.DocumentDescriptor;
 import org.openhealthtools.ihe.xds.document.XDSDocument;
+import org.rsna.isn.ctp.xds.sender.MemoryTier;
 import org.rsna.isn.ctp.xds.sender.event.Iti41Event;
 import org.rsna.isn.ctp.xds.sender.event.XdsSubmissionListener;
 
 /**
  * This class loads the contents of an XDS document on demand instead of
- * when an instance is instantiated.
+ * when an instance is instantiated. The contents are read from the memory
+ * tier of the study cache if the document is held there, and through the
+ * DocumentCache of the transmission if it has one.
  *
  * @author Wyatt Tellis
  * @version 3.0.0
@@ -51,18 +53,36 @@ class LazyLoadedXdsDocument extends XDSDocument
 	LazyLoadedXdsDocument(DocumentDescriptor descriptor,
 			File file, List<XdsSubmissionListener> listeners,
 			int index, int total)
+	{
+		this(descriptor, file, listeners, index, total, null);
+	}
+
+	LazyLoadedXdsDocument(DocumentDescriptor descriptor,
+			File file, List<XdsSubmissionListener> listeners,
+			int index, int total, String hash)
+	{
+		this(descriptor, file, listeners, index, total, hash, null);
+	}
+
+	LazyLoadedXdsDocument(DocumentDescriptor descriptor,
+			File file, List<XdsSubmissionListener> listeners,
+			int index, int total, String hash, DocumentCache contents)
 	{
 		super(descriptor);
 
 		this.file = file;
 
+		this.contents = contents;
+
 		this.listeners = listeners;
 
-		this.event = new Iti41Event(file, index + 1, total);
+		this.event = new Iti41Event(file, index + 1, total, hash);
 	}
 
 	private final File file;
 
+	private final DocumentCache contents;
+
 	/**
 	 * Get the value of file
 	 *
@@ -79,11 +99,16 @@ class LazyLoadedXdsDocument extends XDSDocument
 		return new AutoCloseInputStream(new LazyOpenFileInputStream(file));
 	}
 
+	private InputStream open() throws IOException
+	{
+		return (contents != null) ? contents.open(file) : MemoryTier.open(file);
+	}
+
 	private class LazyOpenFileInputStream extends InputStream
 	{
 		private final File file;
 
-		private FileInputStream in = null;
+		private InputStream in = null;
 
 		public LazyOpenFileInputStream(File file)
 		{
@@ -95,7 +120,7 @@ class LazyLoadedXdsDocument extends XDSDocument
 		{
 			if (in == null)
 			{
-				in = new FileInputStream(file);
+				in = open();
 			}
 
 			return in.read(b, off, len);
@@ -106,7 +131,7 @@ class LazyLoadedXdsDocument extends XDSDocument
 		{
 			if (in == null)
 			{
-				in = new FileInputStream(file);
+				in = open();
 			}
 
 			return in.read(b);
@@ -117,7 +142,7 @@ class LazyLoadedXdsDocument extends XDSDocument
 		{
 			if (in == null)
 			{
-				in = new FileInputStream(file);
+				in = open();
 			}
 
 			return in.read();
@@ -128,7 +153,7 @@ class LazyLoadedXdsDocument extends XDSDocument
 		{
 			if (in == null)
 			{
-				in = new FileInputStream(file);
+				in = open();
 			}
 
 			return in.available();
@@ -141,7 +166,7 @@ class LazyLoadedXdsDocument extends XDSDocument
 			{
 				if (in == null)
 				{
-					in = new FileInputStream(file);
+					in = open();
 				}
 
 				return in.markSupported();
@@ -159,7 +184,7 @@ class LazyLoadedXdsDocument extends XDSDocument
 			{
 				if (in == null)
 				{
-					in = new FileInputStream(file);
+					in = open();
 				}
 
 				in.mark(readlimit);
@@ -175,7 +200,7 @@ class LazyLoadedXdsDocument extends XDSDocument
 		{
 			if (in == null)
 			{
-				in = new FileInputStream(file);
+				in = open();
 			}
 
 			in.reset();
@@ -186,7 +211,7 @@ class LazyLoadedXdsDocument extends XDSDocument
 		{
 			if (in == null)
 			{
-				in = new FileInputStream(file);
+				in = open();
 			}
 
 			return in.skip(n);
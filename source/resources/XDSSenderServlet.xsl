@@ -7,6 +7,7 @@
 <xsl:param name="sentStudies"/>
 <xsl:param name="destinations"/>
 <xsl:param name="home">no</xsl:param>
+<xsl:param name="admin">no</xsl:param>
 
 <xsl:template match="/Studies">
 	<html>
@@ -27,8 +28,8 @@
 
 					<xsl:if test="Study">
 						<p>
-							Select a destination:
-							<select name="key">
+							Select one or more destinations:
+							<select name="key" multiple="multiple" size="{count($destinations/Destinations/Destination) + 3}">
 								<option value=""></option>
 								<xsl:for-each select="$destinations/Destinations/Destination">
 									<option value="{@key}"><xsl:value-of select="@name"/></option>
@@ -50,7 +51,7 @@
 										<td title="UID: {@studyUID}"><xsl:value-of select="@studyDate"/></td>
 										<xsl:call-template name="Description"/>
 										<td class="right"><xsl:value-of select="@size"/></td>
-										<td class="center"><xsl:value-of select="@status"/></td>
+										<td class="center"><xsl:value-of select="@status"/><xsl:if test="@seriesSent"><br/><xsl:value-of select="@seriesSent"/> series sent</xsl:if><xsl:if test="@rejected"><br/><span title="{@rejection}"><xsl:value-of select="@rejected"/> rejected</span></xsl:if></td>
 									</tr>
 								</xsl:for-each>
 							</table>
@@ -58,6 +59,7 @@
 						</center>
 						<p class="center">
 							<input type="submit" class="button" value="Send"/>
+							<input type="submit" class="button" name="complete" value="Complete Now"/>
 						</p>
 					</xsl:if>
 				</form>
@@ -84,7 +86,12 @@
 									<td class="right"><xsl:value-of select="@size"/></td>
 									<td class="right"><xsl:value-of select="@objectsSent"/></td>
 									<xsl:call-template name="DestinationName"/>
-									<td class="center"><xsl:value-of select="@status"/></td>
+									<td class="center">
+										<xsl:value-of select="@status"/>
+										<xsl:if test="@queuePosition"> (<xsl:value-of select="@queuePosition"/>)</xsl:if>
+										<xsl:if test="@seriesSent"><br/><xsl:value-of select="@seriesSent"/> series sent</xsl:if>
+										<xsl:if test="@rejected"><br/><span title="{@rejection}"><xsl:value-of select="@rejected"/> rejected</span></xsl:if>
+									</td>
 								</tr>
 							</xsl:for-each>
 						</table>
@@ -92,6 +99,16 @@
 				</center>
 			</xsl:if>
 
+			<xsl:if test="$admin = 'yes'">
+				<hr/>
+				<form action="" method="POST" accept-charset="UTF-8">
+					<p class="center">
+						<input type="hidden" name="compact" value="yes"/>
+						<input type="submit" class="button" value="Compact Database"/>
+					</p>
+				</form>
+			</xsl:if>
+
 			<xsl:call-template name="footer"/>
 
 		</body>
@@ -134,11 +151,28 @@
 <xsl:template name="DestinationName">
 	<td>
 		<xsl:variable name="dn" select="normalize-space(@destinationName)"/>
-		<xsl:if test="$dn"><xsl:value-of select="@destinationName"/></xsl:if>
-		<xsl:if test="not($dn)">&#160;</xsl:if>
+		<xsl:choose>
+			<xsl:when test="Destination">
+				<xsl:call-template name="DestinationStatus"/>
+			</xsl:when>
+			<xsl:when test="$dn"><xsl:value-of select="@destinationName"/></xsl:when>
+			<xsl:otherwise>&#160;</xsl:otherwise>
+		</xsl:choose>
 	</td>
 </xsl:template>
 
+<xsl:template name="DestinationStatus">
+	<xsl:for-each select="Destination">
+		<xsl:if test="position() != 1"><br/></xsl:if>
+		<xsl:value-of select="@name"/>
+		<xsl:text>: </xsl:text>
+		<xsl:value-of select="@status"/>
+		<xsl:text> (</xsl:text>
+		<xsl:value-of select="@objectsSent"/>
+		<xsl:text>)</xsl:text>
+	</xsl:for-each>
+</xsl:template>
+
 <xsl:template name="footer">
 	<hr/>
 	<p class="left">
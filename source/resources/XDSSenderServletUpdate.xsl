@@ -16,10 +16,20 @@
 				<td class="right"><xsl:value-of select="@objectsSent"/></td>
 				<td>
 					<xsl:variable name="dn" select="normalize-space(@destinationName)"/>
-					<xsl:if test="$dn"><xsl:value-of select="@destinationName"/></xsl:if>
-					<xsl:if test="not($dn)">&#160;</xsl:if>
+					<xsl:choose>
+						<xsl:when test="Destination">
+							<xsl:call-template name="DestinationStatus"/>
+						</xsl:when>
+						<xsl:when test="$dn"><xsl:value-of select="@destinationName"/></xsl:when>
+						<xsl:otherwise>&#160;</xsl:otherwise>
+					</xsl:choose>
+				</td>
+				<td class="center">
+					<xsl:value-of select="@status"/>
+					<xsl:if test="@queuePosition"> (<xsl:value-of select="@queuePosition"/>)</xsl:if>
+					<xsl:if test="@seriesSent"><br/><xsl:value-of select="@seriesSent"/> series sent</xsl:if>
+					<xsl:if test="@rejected"><br/><span title="{@rejection}"><xsl:value-of select="@rejected"/> rejected</span></xsl:if>
 				</td>
-				<td class="center"><xsl:value-of select="@status"/></td>
 			</tr>
 		</xsl:for-each>
 	</table>
@@ -38,6 +48,18 @@
 	</tr>
 </xsl:template>
 
+<xsl:template name="DestinationStatus">
+	<xsl:for-each select="Destination">
+		<xsl:if test="position() != 1"><br/></xsl:if>
+		<xsl:value-of select="@name"/>
+		<xsl:text>: </xsl:text>
+		<xsl:value-of select="@status"/>
+		<xsl:text> (</xsl:text>
+		<xsl:value-of select="@objectsSent"/>
+		<xsl:text>)</xsl:text>
+	</xsl:for-each>
+</xsl:template>
+
 <xsl:template name="Description">
 	<td class="center">
 		<xsl:variable name="dsc" select="normalize-space(@description)"/>
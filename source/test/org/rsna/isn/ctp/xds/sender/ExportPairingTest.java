@@ -0,0 +1,153 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.isn.ctp.xds.sender;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.ctp.objects.FileObject;
+import org.rsna.ctp.stdstages.ObjectCache;
+import org.rsna.util.FileUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Check that a CachingXDSExportService indexes a study by the PHI
+ * in the ObjectCache when the anonymizer between the two stages
+ * remaps the UIDs of the objects.
+ */
+public class ExportPairingTest {
+
+	public static void main(String[] args) throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "ExportPairingTest");
+		FileUtil.deleteAll(dir);
+		dir.mkdirs();
+
+		//Keep SOAPSetup from configuring Axis 2.
+		System.setProperty("axis2.xml", new File(dir, "axis2.xml").getAbsolutePath());
+
+		Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+		Element cacheElement = doc.createElement("ObjectCache");
+		cacheElement.setAttribute("name", "ObjectCache");
+		cacheElement.setAttribute("id", "cache");
+		cacheElement.setAttribute("root", new File(dir, "ObjectCache").getAbsolutePath());
+		Element exportElement = doc.createElement("ExportService");
+		exportElement.setAttribute("name", "CachingXDSExportService");
+		exportElement.setAttribute("root", new File(dir, "export").getAbsolutePath());
+		exportElement.setAttribute("servletContext", "export-pairing-test");
+		exportElement.setAttribute("indexType", "log");
+
+		CachingXDSExportService export = null;
+		try {
+			ObjectCache objectCache = new ObjectCache(cacheElement);
+			export = new CachingXDSExportService(exportElement);
+			export.objectCache = objectCache;
+
+			//Pass two objects of one study through the ObjectCache,
+			//the anonymizer, and the export service, in pipeline order.
+			String studyUID = "1.2.840.99999.1";
+			for (int i=1; i<=2; i++) {
+				File phiFile = new File(dir, "phi" + i + ".dcm");
+				File anonFile = new File(dir, "anon" + i + ".dcm");
+				write(phiFile, studyUID, studyUID + ".1." + i, "Doe^Jane", "PHI-123");
+				FileObject phiObject = objectCache.process(new DicomObject(phiFile));
+				anonymize(phiObject.getFile(), anonFile);
+				DicomObject anonObject = new DicomObject(anonFile);
+				check(!anonObject.getSOPInstanceUID().equals(phiObject.getSOPInstanceUID()),
+						"the anonymizer did not remap the SOPInstanceUID");
+				export.export(anonObject);
+			}
+
+			//The study must be indexed by the PHI, not by the anonymized values.
+			XDSStudyCache cache = XDSStudyCache.getInstance("export-pairing-test");
+			Element studies = cache.getStudyXML(studyUID).getDocumentElement();
+			check(studies.getElementsByTagName("Study").getLength() == 1,
+					"the study was not indexed under its PHI StudyInstanceUID");
+			Element study = (Element)studies.getElementsByTagName("Study").item(0);
+			check(study.getAttribute("patientName").equals("Doe^Jane"),
+					"the study was indexed with the anonymized PatientName");
+			check(study.getAttribute("patientID").equals("PHI-123"),
+					"the study was indexed with the anonymized PatientID");
+			check(study.getAttribute("size").equals("2"),
+					"the objects of the study were not indexed together");
+			check(cache.getStudyCount() == 1,
+					"the anonymized StudyInstanceUID was indexed as a separate study");
+			System.out.println("ExportPairingTest passed");
+		}
+		finally {
+			if (export != null) export.shutdown();
+			FileUtil.deleteAll(dir);
+		}
+	}
+
+	//Write a DICOM part-10 file containing PHI.
+	static void write(File file, String studyUID, String sopUID, String name, String id) throws Exception {
+		write(file, studyUID, studyUID + ".1", sopUID, name, id);
+	}
+
+	//Anonymize an object the way a DicomAnonymizer configured with @hashuid
+	//does: remap every UID and replace the patient's name and ID.
+	static void anonymize(File in, File out) throws Exception {
+		DicomObject dob = new DicomObject(in);
+		write(out,
+			  remap(dob.getStudyInstanceUID()),
+			  remap(dob.getSeriesInstanceUID()),
+			  remap(dob.getSOPInstanceUID()),
+			  "Anonymous", "ANON-1");
+	}
+
+	static String remap(String uid) {
+		return "2.25." + (uid.hashCode() & 0x7fffffff);
+	}
+
+	//Write a minimal secondary capture object in explicit VR little endian.
+	static void write(File file, String studyUID, String seriesUID, String sopUID,
+						String name, String id) throws Exception {
+		String sopClassUID = "1.2.840.10008.5.1.4.1.1.7";
+		ByteArrayOutputStream meta = new ByteArrayOutputStream();
+		element(meta, 0x0002, 0x0002, "UI", sopClassUID);
+		element(meta, 0x0002, 0x0003, "UI", sopUID);
+		element(meta, 0x0002, 0x0010, "UI", "1.2.840.10008.1.2.1");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(new byte[128]);
+			out.write("DICM".getBytes("US-ASCII"));
+			out.write(new byte[] { 2, 0, 0, 0, 'U', 'L', 4, 0 });
+			int length = meta.size();
+			out.write(new byte[] { (byte)length, (byte)(length >> 8), (byte)(length >> 16), (byte)(length >> 24) });
+			meta.writeTo(out);
+			element(out, 0x0008, 0x0016, "UI", sopClassUID);
+			element(out, 0x0008, 0x0018, "UI", sopUID);
+			element(out, 0x0008, 0x0020, "DA", "20120101");
+			element(out, 0x0008, 0x0060, "CS", "OT");
+			element(out, 0x0010, 0x0010, "PN", name);
+			element(out, 0x0010, 0x0020, "LO", id);
+			element(out, 0x0020, 0x000D, "UI", studyUID);
+			element(out, 0x0020, 0x000E, "UI", seriesUID);
+		}
+		finally { out.close(); }
+	}
+
+	static void element(OutputStream out, int group, int elem, String vr, String value) throws Exception {
+		byte[] bytes = value.getBytes("US-ASCII");
+		int length = bytes.length + (bytes.length & 1);
+		out.write(new byte[] { (byte)group, (byte)(group >> 8), (byte)elem, (byte)(elem >> 8) });
+		out.write(vr.getBytes("US-ASCII"));
+		out.write(new byte[] { (byte)length, (byte)(length >> 8) });
+		out.write(bytes);
+		if (length > bytes.length) out.write(vr.equals("UI") ? 0 : ' ');
+	}
+
+	static void check(boolean ok, String message) {
+		if (!ok) throw new AssertionError(message);
+	}
+
+}
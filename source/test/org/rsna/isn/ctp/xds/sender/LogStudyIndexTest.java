@@ -0,0 +1,172 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.isn.ctp.xds.sender;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import org.rsna.util.FileUtil;
+
+/**
+ * Check the recovery of a LogStudyIndex: the replay of a log whose last
+ * record was torn by a crash, the replay of the log over a snapshot,
+ * and the import of the studies of an existing XDSDatabase.
+ */
+public class LogStudyIndexTest {
+
+	public static void main(String[] args) throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "LogStudyIndexTest");
+		try {
+			testTornRecord(dir);
+			testTornLength(dir);
+			testSnapshot(dir);
+			testMigration(dir);
+			System.out.println("LogStudyIndexTest passed");
+		}
+		finally {
+			FileUtil.deleteAll(dir);
+		}
+	}
+
+	//A record cut short by a crash must not hide the records appended after it.
+	static void testTornRecord(File dir) throws Exception {
+		reset(dir);
+
+		//Write a study, then simulate a crash in the middle of a record.
+		LogStudyIndex index = new LogStudyIndex(dir, 0, 100);
+		index.put(study("1.1"));
+		index.close();
+		FileOutputStream fos = new FileOutputStream(getLogFile(dir), true);
+		fos.write(new byte[] { 1, 0, 7, 'g', 'a', 'r' });
+		fos.close();
+
+		//Reopen the index and append a study after the torn record.
+		index = new LogStudyIndex(dir, 0, 100);
+		check(index.get("1.1") != null, "the study written before the crash was lost");
+		index.put(study("1.2"));
+		index.close();
+
+		//Reopen it again; both studies must be there.
+		index = new LogStudyIndex(dir, 0, 100);
+		check(index.get("1.1") != null, "the study written before the crash was lost on the second restart");
+		check(index.get("1.2") != null, "the study appended after the crash was lost");
+		index.close();
+	}
+
+	//A torn length field must end the replay rather than fail it.
+	static void testTornLength(File dir) throws Exception {
+		reset(dir);
+		LogStudyIndex index = new LogStudyIndex(dir, 0, 100);
+		index.put(study("2.1"));
+		index.close();
+
+		int[] lengths = { -5, Integer.MAX_VALUE };
+		for (int length : lengths) {
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(getLogFile(dir), true));
+			out.writeByte(1);
+			out.writeUTF("2.9");
+			out.writeInt(length);
+			out.close();
+
+			index = new LogStudyIndex(dir, 0, 100);
+			check(!index.isClosed(), "a record length of "+length+" closed the index");
+			check(index.get("2.1") != null, "a record length of "+length+" lost the good records");
+			check(index.get("2.9") == null, "a record with a length of "+length+" was applied");
+			index.close();
+		}
+	}
+
+	//A snapshot and the log written after it must both be replayed.
+	static void testSnapshot(File dir) throws Exception {
+		reset(dir);
+		LogStudyIndex index = new LogStudyIndex(dir, 0, 100);
+		XDSStudy[] studies = new XDSStudy[10];
+		for (int i=0; i<studies.length; i++) studies[i] = study("3." + i);
+
+		//Update the studies until the log has been snapshotted.
+		int updates = 0;
+		while (!getSnapshotFile(dir).exists()) {
+			XDSStudy study = studies[updates % studies.length];
+			study.setSize(++updates);
+			index.put(study);
+			check(updates < 10000, "no snapshot was written");
+		}
+
+		//Update some studies and add one after the snapshot, so they are only in the log.
+		studies[0].setSize(-1);
+		index.put(studies[0]);
+		index.put(study("3.new"));
+		index.remove(studies[1]);
+		index.close();
+		check(getLogFile(dir).length() > 0, "the updates after the snapshot were not logged");
+
+		index = new LogStudyIndex(dir, 0, 100);
+		check(index.getStudyCount() == studies.length, "the index has "+index.getStudyCount()+" studies");
+		check(index.get("3.0").getSize() == -1, "an update in the log was not applied over the snapshot");
+		check(index.get("3.new") != null, "a study added after the snapshot was lost");
+		check(index.get("3.1") == null, "a study removed after the snapshot was restored");
+		for (int i=2; i<studies.length; i++) {
+			check(index.get("3." + i).getSize() == studies[i].getSize(), "the last update of 3."+i+" was lost");
+		}
+		index.close();
+	}
+
+	//The studies of an existing XDSDatabase must be imported once,
+	//leaving the XDSDatabase files in place.
+	static void testMigration(File dir) throws Exception {
+		reset(dir);
+		XDSDatabase database = new XDSDatabase(dir);
+		for (int i=0; i<5; i++) database.put(study("4." + i));
+		database.close();
+
+		LogStudyIndex index = new LogStudyIndex(dir, 0, 100);
+		check(index.getStudyCount() == 5, "the index imported "+index.getStudyCount()+" studies");
+		for (int i=0; i<5; i++) check(index.get("4." + i) != null, "study 4."+i+" was not imported");
+		check(getSnapshotFile(dir).exists(), "the imported studies were not written to a snapshot");
+		check(XDSDatabase.exists(dir), "the XDSDatabase files were removed");
+		index.remove(index.get("4.0"));
+		index.put(study("4.new"));
+		index.close();
+
+		//The import is not repeated once the index has its own files.
+		index = new LogStudyIndex(dir, 0, 100);
+		check(index.get("4.0") == null, "the studies were imported again");
+		check(index.get("4.new") != null, "a study added after the import was lost");
+		check(index.getStudyCount() == 5, "the index has "+index.getStudyCount()+" studies");
+		index.close();
+	}
+
+	static void reset(File dir) {
+		FileUtil.deleteAll(dir);
+		dir.mkdirs();
+	}
+
+	static File getLogFile(File dir) {
+		return new File(dir, LogStudyIndex.indexName + ".log");
+	}
+
+	static File getSnapshotFile(File dir) {
+		return new File(dir, LogStudyIndex.indexName + ".snapshot");
+	}
+
+	static XDSStudy study(String studyUID) {
+		XDSStudy study = new XDSStudy();
+		study.studyUID = studyUID;
+		study.dirname = CacheLayout.getDirname(studyUID);
+		study.status = XDSStudyStatus.OPEN;
+		study.patientID = "";
+		study.patientName = "";
+		study.studyDate = "";
+		return study;
+	}
+
+	static void check(boolean ok, String message) {
+		if (!ok) throw new AssertionError(message);
+	}
+
+}
@@ -0,0 +1,95 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.isn.ctp.xds.sender;
+
+import java.io.File;
+import java.util.Random;
+import org.rsna.util.FileUtil;
+
+/**
+ * Compare the jdbm and log StudyIndex engines on puts, gets, scans,
+ * and reopening. The number of studies is the first argument
+ * (default 10000).
+ */
+public class StudyIndexBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int count = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+		File dir = new File(System.getProperty("java.io.tmpdir"), "StudyIndexBenchmark");
+		System.out.println(String.format("%-6s %10s %10s %10s %10s %10s %10s",
+							"index", "studies", "put/s", "update/s", "get/s", "scan ms", "open ms"));
+		try {
+			for (String type : new String[] { "jdbm", "log" }) {
+				FileUtil.deleteAll(dir);
+				dir.mkdirs();
+				run(type, dir, count);
+			}
+		}
+		finally {
+			FileUtil.deleteAll(dir);
+		}
+	}
+
+	static void run(String type, File dir, int count) throws Exception {
+		StudyIndex index = open(type, dir);
+		XDSStudy[] studies = new XDSStudy[count];
+		for (int i=0; i<count; i++) studies[i] = study("1.2.840.99999." + i);
+
+		//Puts of new studies (each one commits, since it changes the status).
+		long start = System.nanoTime();
+		for (XDSStudy study : studies) index.put(study);
+		double putRate = rate(count, start);
+
+		//Updates of existing studies, as the progress counters are updated.
+		Random random = new Random(1);
+		start = System.nanoTime();
+		for (int i=0; i<count; i++) {
+			XDSStudy study = studies[random.nextInt(count)];
+			study.incrementObjectsSent(1);
+			index.put(study);
+		}
+		double updateRate = rate(count, start);
+
+		start = System.nanoTime();
+		for (int i=0; i<count; i++) index.get(studies[random.nextInt(count)].getStudyUID());
+		double getRate = rate(count, start);
+
+		start = System.nanoTime();
+		int scanned = index.getAllStudies().length + index.getStudies(XDSStudyStatus.OPEN).length;
+		double scanMs = (System.nanoTime() - start) / 1000000.0;
+		index.close();
+
+		start = System.nanoTime();
+		index = open(type, dir);
+		double openMs = (System.nanoTime() - start) / 1000000.0;
+		if ((index.getStudyCount() != count) || (scanned != 2 * count)) {
+			throw new AssertionError("the "+type+" index lost studies");
+		}
+		index.close();
+
+		System.out.println(String.format("%-6s %10d %10.0f %10.0f %10.0f %10.1f %10.1f",
+							type, count, putRate, updateRate, getRate, scanMs, openMs));
+	}
+
+	static StudyIndex open(String type, File dir) {
+		return type.equals("log") ? new LogStudyIndex(dir, 0, 100) : new XDSDatabase(dir, 0, 100);
+	}
+
+	static double rate(int count, long start) {
+		return count / ((System.nanoTime() - start) / 1000000000.0);
+	}
+
+	static XDSStudy study(String studyUID) {
+		XDSStudy study = LogStudyIndexTest.study(studyUID);
+		study.patientID = "PID" + (studyUID.hashCode() & 0xffff);
+		study.patientName = "Test^Patient";
+		study.studyDate = "20120101";
+		return study;
+	}
+
+}
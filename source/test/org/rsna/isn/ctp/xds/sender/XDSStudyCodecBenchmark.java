@@ -0,0 +1,81 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.isn.ctp.xds.sender;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Compare the size of XDSStudyCodec records and the time taken to encode
+ * and decode them with Java serialization, which the database used before.
+ * The number of objects per study is the first argument (default 500).
+ */
+public class XDSStudyCodecBenchmark {
+
+	static final int iterations = 2000;
+
+	public static void main(String[] args) throws Exception {
+		int objects = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+		XDSStudy study = XDSStudyCodecTest.study();
+		study.objects.clear();
+		String root = "1.2.840.113619.2.55.3.604688119.968.1325419200.";
+		for (int i=0; i<objects; i++) study.objects.add(root + (1000 + i));
+		study.size = objects;
+
+		//Warm up both encodings before timing them.
+		run(study, iterations, false);
+		run(study, iterations, true);
+
+		System.out.println(String.format("%-14s %8s %12s %12s",
+							"encoding", "bytes", "encode us", "decode us"));
+		report("serialization", study, false);
+		report("XDSStudyCodec", study, true);
+	}
+
+	static void report(String name, XDSStudy study, boolean codec) throws Exception {
+		int bytes = encode(study, codec).length;
+		long[] nanos = run(study, iterations, codec);
+		System.out.println(String.format("%-14s %8d %12.1f %12.1f",
+							name, bytes,
+							nanos[0] / 1000.0 / iterations,
+							nanos[1] / 1000.0 / iterations));
+	}
+
+	//Encode and decode a study repeatedly, returning the total encoding
+	//and decoding times in nanoseconds.
+	static long[] run(XDSStudy study, int n, boolean codec) throws Exception {
+		long[] nanos = new long[2];
+		byte[] bytes = null;
+		long start = System.nanoTime();
+		for (int i=0; i<n; i++) bytes = encode(study, codec);
+		nanos[0] = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i=0; i<n; i++) decode(bytes, codec);
+		nanos[1] = System.nanoTime() - start;
+		return nanos;
+	}
+
+	static byte[] encode(XDSStudy study, boolean codec) throws Exception {
+		if (codec) return XDSStudyCodec.encode(study);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(baos);
+		out.writeObject(study);
+		out.close();
+		return baos.toByteArray();
+	}
+
+	static XDSStudy decode(byte[] bytes, boolean codec) throws Exception {
+		if (codec) return XDSStudyCodec.decode(bytes);
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		try { return (XDSStudy)in.readObject(); }
+		finally { in.close(); }
+	}
+
+}
@@ -0,0 +1,236 @@
+/*---------------------------------------------------------------
+*  Copyright 2012 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.isn.ctp.xds.sender;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Set;
+import jdbm.RecordManager;
+import jdbm.RecordManagerFactory;
+import jdbm.htree.HTree;
+import org.apache.commons.codec.binary.Base64;
+import org.rsna.util.FileUtil;
+
+/**
+ * Check that XDSStudyCodec decodes the records of every version it has
+ * written, and the Java-serialized records written before it existed,
+ * both directly and through an XDSDatabase.
+ */
+public class XDSStudyCodecTest {
+
+	//An XDSStudy serialized by the class as it was before XDSStudyCodec,
+	//when the study directory was stored as an absolute File.
+	static final String serializedStudy =
+		"rO0ABXNyACRvcmcucnNuYS5pc24uY3RwLnhkcy5zZW5kZXIuWERTU3R1ZHkAAAAAAAAAAQIA" +
+		"DkoAEGxhc3RNb2RpZmllZFRpbWVJAAtvYmplY3RzU2VudEkABHNpemVMAAhib2R5cGFydHQA" +
+		"EkxqYXZhL2xhbmcvU3RyaW5nO0wAC2Rlc3RpbmF0aW9ucQB+AAFMAA9kZXN0aW5hdGlvbk5h" +
+		"bWVxAH4AAUwACG1vZGFsaXR5cQB+AAFMAAlwYXRpZW50SURxAH4AAUwAC3BhdGllbnROYW1l" +
+		"cQB+AAFMAAZzdGF0dXN0ACxMb3JnL3JzbmEvaXNuL2N0cC94ZHMvc2VuZGVyL1hEU1N0dWR5" +
+		"U3RhdHVzO0wACXN0dWR5RGF0ZXEAfgABTAAQc3R1ZHlEZXNjcmlwdGlvbnEAfgABTAAIc3R1" +
+		"ZHlEaXJ0AA5MamF2YS9pby9GaWxlO0wACHN0dWR5VUlEcQB+AAF4cAAAATSZI/4AAAAAAQAA" +
+		"AAN0AAVDSEVTVHQABGtleTF0AA1DbGVhcmluZ2hvdXNldAACQ1R0AAVQSUQtN3QACERvZV5K" +
+		"b2huc3IAKm9yZy5yc25hLmlzbi5jdHAueGRzLnNlbmRlci5YRFNTdHVkeVN0YXR1cwAAAAAA" +
+		"AAABAgABTAAGc3RhdHVzcQB+AAF4cHQACUlOVFJBTlNJVHQACDIwMTIwMTAxdAAIQ1QgQ0hF" +
+		"U1RzcgAMamF2YS5pby5GaWxlBC2kRQ4N5P8DAAFMAARwYXRocQB+AAF4cHQAIi92YXIvY3Rw" +
+		"L3hkcy9jYWNoZS8xLjIuODQwLjk5OTk5Ljd3AgAveHQADzEuMi44NDAuOTk5OTkuNw==";
+
+	public static void main(String[] args) throws Exception {
+		testRoundTrip();
+		for (int version=1; version<=6; version++) testVersion(version);
+		testSerialized();
+		testSerializedDatabase();
+		System.out.println("XDSStudyCodecTest passed");
+	}
+
+	//A study with every field set survives encoding and decoding.
+	static void testRoundTrip() throws Exception {
+		XDSStudy study = study();
+		XDSStudy decoded = XDSStudyCodec.decode(XDSStudyCodec.encode(study));
+		checkSame(study, decoded, "the current version");
+		check(decoded.status == XDSStudyStatus.INTRANSIT, "the status was not canonicalized");
+	}
+
+	//A record of an earlier version decodes to the fields that version stored.
+	static void testVersion(int version) throws Exception {
+		XDSStudy study = study();
+		XDSStudy decoded = XDSStudyCodec.decode(encode(study, version));
+		if (version < 2) study.transmissions = null;
+		if (version < 3) study.bytes = 0;
+		if (version < 5) {
+			study.rejected = 0;
+			study.rejection = null;
+		}
+		if (version < 6) study.series = null;
+		checkSame(study, decoded, "version "+version);
+	}
+
+	//A Java-serialized record is still decoded.
+	static void testSerialized() throws Exception {
+		byte[] bytes = Base64.decodeBase64(serializedStudy.getBytes("US-ASCII"));
+		checkSerialized(XDSStudyCodec.decode(bytes), "the serialized record");
+	}
+
+	//An XDSDatabase whose HTree holds serialized XDSStudy objects,
+	//as the database did before XDSStudyCodec, is still loaded.
+	static void testSerializedDatabase() throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "XDSStudyCodecTest");
+		FileUtil.deleteAll(dir);
+		dir.mkdirs();
+		try {
+			XDSStudy legacy = XDSStudyCodec.decode(Base64.decodeBase64(serializedStudy.getBytes("US-ASCII")));
+			RecordManager recman = RecordManagerFactory.createRecordManager(
+										new File(dir, XDSDatabase.databaseName).getAbsolutePath());
+			HTree studies = HTree.createInstance(recman);
+			recman.setNamedObject("studies", studies.getRecid());
+			studies.put(legacy.getStudyUID(), legacy);
+			recman.commit();
+			recman.close();
+
+			XDSDatabase database = new XDSDatabase(dir);
+			XDSStudy study = database.get(legacy.getStudyUID());
+			check(study != null, "the serialized study was not loaded from the database");
+			checkSerialized(study, "the serialized database entry");
+
+			//An update rewrites the entry in the current encoding.
+			study.setSize(4);
+			database.put(study);
+			database.close();
+			database = new XDSDatabase(dir);
+			check(database.get(legacy.getStudyUID()).getSize() == 4, "the rewritten entry was lost");
+			database.close();
+		}
+		finally {
+			FileUtil.deleteAll(dir);
+		}
+	}
+
+	static void checkSerialized(XDSStudy study, String what) {
+		check(study.getStudyUID().equals("1.2.840.99999.7"), what+": wrong StudyInstanceUID");
+		check(study.getSize() == 3, what+": wrong size");
+		check(study.getStatus() == XDSStudyStatus.INTRANSIT, what+": the status was not canonicalized");
+		check(study.getPatientName().equals("Doe^John"), what+": wrong PatientName");
+		check(study.getDestination().equals("key1"), what+": wrong destination");
+		//The directory was stored as an absolute path; the cache resolves
+		//it through its layout when the study is loaded.
+		CacheLayout layout = new CacheLayout(new File("cache"), CacheLayout.FLAT);
+		study.resolve(layout);
+		check(study.getDirname().equals("1.2.840.99999.7"), what+": wrong directory name");
+		check(study.getDirectory().equals(layout.getStudyDir("1.2.840.99999.7")), what+": wrong directory");
+	}
+
+	//A study with every field set.
+	static XDSStudy study() {
+		XDSStudy study = LogStudyIndexTest.study("1.2.840.99999.1");
+		study.size = 3;
+		study.objectsSent = 1;
+		study.lastModifiedTime = 1325419200000L;
+		study.status = XDSStudyStatus.INTRANSIT;
+		study.destination = "key1";
+		study.destinationName = "Clearinghouse";
+		study.patientID = "PID-1";
+		study.patientName = "Doe^Jane";
+		study.studyDate = "20120101";
+		study.modality = "CT";
+		study.bodypart = "CHEST";
+		study.studyDescription = "CT CHEST";
+		for (int i=1; i<=3; i++) study.objects.add("1.2.840.99999.1.1." + i);
+		study.setDestinations(Arrays.asList("key1", "key2"), Arrays.asList("Clearinghouse", "Archive"));
+		study.transmissions.get("key2").objectsSent = 2;
+		study.bytes = 123456789L;
+		study.rejected = 2;
+		study.rejection = "missing SOPClassUID";
+		study.addSeriesObject("1.2.840.99999.1.1", "1.2.840.99999.1.1.1", true);
+		study.addSeriesObject("1.2.840.99999.1.1", "1.2.840.99999.1.1.2", true);
+		return study;
+	}
+
+	//Compare two studies through their encodings in the current version,
+	//which include every persistent field.
+	static void checkSame(XDSStudy expected, XDSStudy actual, String what) throws Exception {
+		check(Arrays.equals(XDSStudyCodec.encode(expected), XDSStudyCodec.encode(actual)),
+				what+" did not decode to the study that was encoded");
+	}
+
+	//Encode a study as the given version of XDSStudyCodec wrote it.
+	//Each version appended fields to the previous one, and before
+	//version 4 the directory was stored as an absolute path.
+	static byte[] encode(XDSStudy study, int version) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(baos);
+		out.writeByte(0x58);
+		out.writeByte(version);
+		writeString(out, study.studyUID);
+		writeString(out, (version < 4) ? "/var/ctp/xds/cache/" + study.dirname : study.dirname);
+		out.writeInt(study.size);
+		out.writeInt(study.objectsSent);
+		out.writeLong(study.lastModifiedTime);
+		writeString(out, study.status.toString());
+		writeString(out, study.destination);
+		writeString(out, study.destinationName);
+		writeString(out, study.patientID);
+		writeString(out, study.patientName);
+		writeString(out, study.studyDate);
+		writeString(out, study.modality);
+		writeString(out, study.bodypart);
+		writeString(out, study.studyDescription);
+		out.writeInt(study.objects.size());
+		writeFilenames(out, study.objects);
+		if (version >= 2) {
+			out.writeInt(study.transmissions.size());
+			for (XDSStudy.Transmission t : study.transmissions.values()) {
+				writeString(out, t.key);
+				writeString(out, t.name);
+				writeString(out, t.status.toString());
+				out.writeInt(t.objectsSent);
+			}
+		}
+		if (version >= 3) out.writeLong(study.bytes);
+		if (version >= 5) {
+			out.writeInt(study.rejected);
+			writeString(out, study.rejection);
+		}
+		if (version >= 6) {
+			out.writeInt(study.series.size());
+			for (XDSStudy.Series s : study.series.values()) {
+				writeString(out, s.seriesUID);
+				out.writeInt(s.size);
+				out.writeInt(s.objectsSent);
+				out.writeLong(s.lastModifiedTime);
+				writeString(out, s.status.toString());
+				out.writeInt(s.pending.size());
+				writeFilenames(out, s.pending);
+			}
+		}
+		out.close();
+		return baos.toByteArray();
+	}
+
+	static void writeFilenames(DataOutputStream out, Set<String> filenames) throws Exception {
+		String previous = "";
+		for (String filename : filenames) {
+			int prefix = 0;
+			while ((prefix < previous.length()) && (prefix < filename.length())
+					&& (previous.charAt(prefix) == filename.charAt(prefix))) prefix++;
+			out.writeShort(prefix);
+			out.writeUTF(filename.substring(prefix));
+			previous = filename;
+		}
+	}
+
+	static void writeString(DataOutputStream out, String s) throws Exception {
+		out.writeBoolean(s != null);
+		if (s != null) out.writeUTF(s);
+	}
+
+	static void check(boolean ok, String message) {
+		if (!ok) throw new AssertionError(message);
+	}
+
+}